@@ -0,0 +1,83 @@
+package course.benchmark;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import course.dao.BlogPostDAO;
+import course.dao.PageCursor;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// read paths of BlogPostDAO against FakeMongo, so what is measured is query building,
+// projection and BSON decoding of the results
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlogPostDAOBenchmark {
+
+  @Param({"5", "500", "2000"})
+  private int comments;
+
+  private BlogPostDAO blogPostDAO;
+  private String tag;
+  // the keyset cursors of the second page of each list
+  private PageCursor secondPage;
+  private PageCursor secondTagPage;
+
+  @Setup
+  public void setUp() {
+    MongoDatabase database = new FakeMongo().database("blog");
+    MongoCollection<Document> posts = database.getCollection("posts");
+    posts.insertOne(PostFixtures.post("hot_post", comments, 42));
+    List<Document> archive = PostFixtures.posts(200, 42);
+    posts.insertMany(archive);
+    tag = archive.get(0).get("tags", List.class).get(0).toString();
+    blogPostDAO = new BlogPostDAO(database);
+    secondPage = lastOf(blogPostDAO.findByDateDescending(10, null));
+    secondTagPage = lastOf(blogPostDAO.findByTagDateDescending(tag, 10, null));
+  }
+
+  private static PageCursor lastOf(List<Document> page) {
+    return PageCursor.parse(PageCursor.after(page.get(page.size() - 1)));
+  }
+
+  @Benchmark
+  public Document findByPermalink() {
+    return blogPostDAO.findByPermalink("hot_post");
+  }
+
+  @Benchmark
+  public List<Document> findByDateDescending() {
+    return blogPostDAO.findByDateDescending(11, null);
+  }
+
+  @Benchmark
+  public List<Document> findByDateDescendingSecondPage() {
+    return blogPostDAO.findByDateDescending(11, secondPage);
+  }
+
+  @Benchmark
+  public List<Document> findByTagDateDescending() {
+    return blogPostDAO.findByTagDateDescending(tag, 11, null);
+  }
+
+  @Benchmark
+  public List<Document> findByTagDateDescendingSecondPage() {
+    return blogPostDAO.findByTagDateDescending(tag, 11, secondTagPage);
+  }
+}
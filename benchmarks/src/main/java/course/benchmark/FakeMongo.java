@@ -0,0 +1,353 @@
+package course.benchmark;
+
+import com.mongodb.Block;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// in-memory stand-in for the parts of the driver the DAOs use, so the DAO read paths can be
+// benchmarked offline. documents are kept as BSON and every result is encoded and decoded
+// again, which keeps the per-query allocation close to what the real driver does. filters on
+// top-level fields with equality, $lt, $lte, $gt, $gte, $ne and $in, combined with $and and
+// $or, are understood, as are sort, skip, limit, inclusion projections and $slice. anything
+// else fails loudly rather than quietly returning the wrong posts
+public final class FakeMongo {
+  private static final CodecRegistry REGISTRY = MongoClient.getDefaultCodecRegistry();
+  private static final DocumentCodec CODEC = new DocumentCodec();
+
+  private final Map<String, List<Document>> collections = new ConcurrentHashMap<>();
+
+  public MongoDatabase database(String name) {
+    return proxy(MongoDatabase.class, (self, method, args) -> {
+      switch (method.getName()) {
+        case "getName":
+          return name;
+        case "getCodecRegistry":
+          return REGISTRY;
+        case "getCollection":
+          return collection(name, (String) args[0]);
+        default:
+          throw new UnsupportedOperationException("MongoDatabase." + method.getName());
+      }
+    });
+  }
+
+  private MongoCollection<Document> collection(String database, String name) {
+    List<Document> documents =
+        collections.computeIfAbsent(name, key -> new CopyOnWriteArrayList<>());
+    return proxy(MongoCollection.class, (self, method, args) -> {
+      switch (method.getName()) {
+        case "getNamespace":
+          return new MongoNamespace(database, name);
+        case "find":
+          return new Query(documents, args != null && args.length > 0 && args[0] instanceof Bson
+              ? (Bson) args[0] : null).proxy(method.getReturnType());
+        case "aggregate":
+          return new Query(documents, new Document("_id", "never matches"))
+              .proxy(method.getReturnType());
+        case "insertOne":
+          documents.add(roundTrip((Document) args[0]));
+          return null;
+        case "insertMany":
+          for (Object document : (List<?>) args[0]) {
+            documents.add(roundTrip((Document) document));
+          }
+          return null;
+        case "count":
+          return (long) new Query(documents, args != null && args.length > 0
+              ? (Bson) args[0] : null).results(0).size();
+        case "updateOne":
+        case "updateMany":
+        case "bulkWrite":
+        case "createIndex":
+        case "findOneAndUpdate":
+        case "deleteOne":
+          // writes are accepted and ignored, the benchmarks only measure reads
+          return null;
+        default:
+          throw new UnsupportedOperationException("MongoCollection." + method.getName());
+      }
+    });
+  }
+
+  private static final class Query {
+    private final List<Document> documents;
+    private final BsonDocument filter;
+    private BsonDocument projection;
+    private BsonDocument sort;
+    // operands decoded once per query rather than once per document they are compared with
+    private final Map<BsonValue, Object> operands = new IdentityHashMap<>();
+    private int skip;
+    private int limit;
+
+    private Query(List<Document> documents, Bson filter) {
+      this.documents = documents;
+      this.filter = filter == null ? new BsonDocument() : toBson(filter);
+    }
+
+    private Object proxy(Class<?> type) {
+      return FakeMongo.proxy(type, (self, method, args) -> {
+        switch (method.getName()) {
+          case "projection":
+            projection = toBson((Bson) args[0]);
+            return self;
+          case "sort":
+            sort = toBson((Bson) args[0]);
+            return self;
+          case "skip":
+            skip = (Integer) args[0];
+            return self;
+          case "limit":
+            limit = (Integer) args[0];
+            return self;
+          case "first":
+            List<Document> first = results(1);
+            return first.isEmpty() ? null : first.get(0);
+          case "into":
+            addAll(args[0], results(limit));
+            return args[0];
+          case "forEach":
+            forEach(args[0], results(limit));
+            return null;
+          default:
+            if (MongoIterable.class.isAssignableFrom(method.getReturnType())) {
+              // modifiers, batchSize and friends don't change the fake result
+              return self;
+            }
+            throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+        }
+      });
+    }
+
+    private List<Document> results(int max) {
+      List<Document> matched = new ArrayList<>();
+      for (Document document : documents) {
+        if (matches(document, filter)) {
+          matched.add(document);
+        }
+      }
+      if (sort != null && !sort.isEmpty()) {
+        matched.sort(this::compareBySort);
+      }
+      int from = Math.min(skip, matched.size());
+      int to = max > 0 ? Math.min(matched.size(), from + max) : matched.size();
+      List<Document> results = new ArrayList<>(to - from);
+      for (Document document : matched.subList(from, to)) {
+        results.add(roundTrip(project(document)));
+      }
+      return results;
+    }
+
+    private int compareBySort(Document left, Document right) {
+      for (Map.Entry<String, BsonValue> field : sort.entrySet()) {
+        int order = compare(left.get(field.getKey()), right.get(field.getKey()));
+        if (order != 0) {
+          return field.getValue().asNumber().intValue() < 0 ? -order : order;
+        }
+      }
+      return 0;
+    }
+
+    private boolean matches(Document document, BsonDocument filter) {
+      for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+        String key = condition.getKey();
+        BsonValue value = condition.getValue();
+        boolean matched;
+        if (key.equals("$and") || key.equals("$or")) {
+          boolean or = key.equals("$or");
+          matched = !or;
+          for (BsonValue clause : value.asArray()) {
+            if (matches(document, clause.asDocument()) == or) {
+              matched = or;
+              break;
+            }
+          }
+        } else if (key.startsWith("$")) {
+          throw new UnsupportedOperationException("query operator " + key);
+        } else if (isOperators(value)) {
+          matched = true;
+          for (Map.Entry<String, BsonValue> operator : value.asDocument().entrySet()) {
+            matched &= matches(document.get(key), operator.getKey(), operator.getValue());
+          }
+        } else {
+          matched = matches(document.get(key), "$eq", value);
+        }
+        if (!matched) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isOperators(BsonValue value) {
+      return value.isDocument() && !value.asDocument().isEmpty()
+          && value.asDocument().keySet().iterator().next().startsWith("$");
+    }
+
+    // like mongod, a condition on an array field matches if any element matches
+    private boolean matches(Object actual, String operator, BsonValue operand) {
+      if (actual instanceof List && !operator.equals("$ne")) {
+        for (Object element : (List<?>) actual) {
+          if (matches(element, operator, operand)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      Object expected = operands.computeIfAbsent(operand, FakeMongo::toJava);
+      switch (operator) {
+        case "$eq":
+          return Objects.equals(expected, actual);
+        case "$ne":
+          return actual instanceof List ? !((List<?>) actual).contains(expected)
+              : !Objects.equals(expected, actual);
+        case "$in":
+          return ((List<?>) expected).contains(actual);
+        case "$lt":
+          return actual != null && compare(actual, expected) < 0;
+        case "$lte":
+          return actual != null && compare(actual, expected) <= 0;
+        case "$gt":
+          return actual != null && compare(actual, expected) > 0;
+        case "$gte":
+          return actual != null && compare(actual, expected) >= 0;
+        default:
+          throw new UnsupportedOperationException("query operator " + operator);
+      }
+    }
+
+    // missing fields sort first, numbers compare by value whatever their type
+    private static int compare(Object left, Object right) {
+      if (left == null || right == null) {
+        return left == null ? (right == null ? 0 : -1) : 1;
+      }
+      if (left instanceof Number && right instanceof Number) {
+        return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+      }
+      if (left.getClass() != right.getClass() || !(left instanceof Comparable)) {
+        throw new UnsupportedOperationException("comparing " + left.getClass().getSimpleName()
+            + " with " + right.getClass().getSimpleName());
+      }
+      return compareSameType((Comparable<?>) left, right);
+    }
+
+    @SuppressWarnings("unchecked") // compare() checked that both are of the same class
+    private static int compareSameType(Comparable<?> left, Object right) {
+      return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    @SuppressWarnings("unchecked") // into() and forEach() are only ever called with documents
+    private static void addAll(Object target, List<Document> results) {
+      ((Collection<Document>) target).addAll(results);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void forEach(Object block, List<Document> results) {
+      for (Document document : results) {
+        ((Block<Document>) block).apply(document);
+      }
+    }
+
+    private Document project(Document document) {
+      if (projection == null || projection.isEmpty()) {
+        return document;
+      }
+      boolean inclusion = false;
+      for (BsonValue value : projection.values()) {
+        inclusion |= value.isNumber() && value.asNumber().intValue() == 1;
+      }
+      Document projected = new Document();
+      for (Map.Entry<String, Object> field : document.entrySet()) {
+        BsonValue spec = projection.get(field.getKey());
+        if (spec != null && spec.isDocument() && spec.asDocument().containsKey("$slice")) {
+          projected.put(field.getKey(), slice((List<?>) field.getValue(),
+              spec.asDocument().get("$slice")));
+        } else if (!inclusion || spec != null || field.getKey().equals("_id")) {
+          projected.put(field.getKey(), field.getValue());
+        }
+      }
+      return projected;
+    }
+
+    private static List<?> slice(List<?> list, BsonValue spec) {
+      int skip = 0;
+      int limit;
+      if (spec.isArray()) {
+        BsonArray range = spec.asArray();
+        skip = range.get(0).asNumber().intValue();
+        limit = range.get(1).asNumber().intValue();
+      } else {
+        limit = spec.asNumber().intValue();
+      }
+      int from = Math.min(skip, list.size());
+      return list.subList(from, (int) Math.min(list.size(), (long) from + limit));
+    }
+  }
+
+  private static Object toJava(BsonValue value) {
+    return roundTrip(new Document("v", value)).get("v");
+  }
+
+  private static BsonDocument toBson(Bson bson) {
+    return bson.toBsonDocument(Document.class, REGISTRY);
+  }
+
+  private static Document roundTrip(Document document) {
+    return CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(encode(document))),
+        DecoderContext.builder().build());
+  }
+
+  private static byte[] encode(Document document) {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    CODEC.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+    return buffer.toByteArray();
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(FakeMongo.class.getClassLoader(), new Class<?>[]{type},
+        (self, method, args) -> {
+          if (method.getDeclaringClass() == Object.class) {
+            return objectMethod(self, method, args);
+          }
+          return handler.invoke(self, method, args);
+        }));
+  }
+
+  private static Object objectMethod(Object self, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return self == args[0];
+      case "hashCode":
+        return System.identityHashCode(self);
+      default:
+        return "FakeMongo proxy";
+    }
+  }
+}
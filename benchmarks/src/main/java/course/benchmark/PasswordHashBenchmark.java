@@ -0,0 +1,74 @@
+package course.benchmark;
+
+import course.dao.UserDAO;
+import course.security.LegacyMd5PasswordHasher;
+import course.security.PasswordService;
+import course.security.Pbkdf2PasswordHasher;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// cost of one login at a few PBKDF2 iteration counts, to pick blog.password.iterations for the
+// hardware, next to the legacy MD5 hash it replaces. logins go through UserDAO against a fake
+// users collection, so the hashing thread hand-off is included
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordHashBenchmark {
+  private static final String PASSWORD = "correct horse battery staple";
+
+  @Param({"10000", "100000", "310000"})
+  public int iterations;
+
+  private UserDAO userDAO;
+  private Pbkdf2PasswordHasher pbkdf2;
+  private String pbkdf2Hash;
+  private LegacyMd5PasswordHasher md5;
+  private String md5Hash;
+
+  @Setup
+  public void setUp() {
+    pbkdf2 = new Pbkdf2PasswordHasher(iterations);
+    pbkdf2Hash = pbkdf2.hash(PASSWORD);
+    md5 = new LegacyMd5PasswordHasher();
+    md5Hash = md5.hash(PASSWORD);
+
+    userDAO = new UserDAO(new FakeMongo().database("blog"), new PasswordService(pbkdf2, 1,
+        PasswordService.DEFAULT_QUEUE_SIZE, md5));
+    userDAO.addUser("benchmark", PASSWORD, "");
+  }
+
+  @Benchmark
+  public boolean pbkdf2Verify() {
+    return pbkdf2.verify(PASSWORD, pbkdf2Hash);
+  }
+
+  @Benchmark
+  public boolean legacyMd5Verify() {
+    return md5.verify(PASSWORD, md5Hash);
+  }
+
+  @Benchmark
+  public Document validateLogin() {
+    return userDAO.validateLogin("benchmark", PASSWORD);
+  }
+
+  @Benchmark
+  public Document validateLoginWrongPassword() {
+    return userDAO.validateLogin("benchmark", "wrong password");
+  }
+}
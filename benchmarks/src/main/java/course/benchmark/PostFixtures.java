@@ -0,0 +1,98 @@
+package course.benchmark;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+// generates posts shaped like the ones in production: most posts have a handful of comments,
+// a few popular ones have hundreds or thousands
+public final class PostFixtures {
+  private static final String[] WORDS = {"mongo", "java", "spark", "freemarker", "index",
+      "query", "cursor", "latency", "throughput", "cache", "blog", "post", "comment", "tag",
+      "shard", "replica", "document", "schema", "driver", "template"};
+
+  private PostFixtures() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static List<Document> posts(int count, long seed) {
+    Random random = new Random(seed);
+    List<Document> posts = new ArrayList<>(count);
+    long date = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      date -= 60_000 + random.nextInt(3_600_000);
+      posts.add(post(random, "post_" + i, commentCount(random), new Date(date)));
+    }
+    return posts;
+  }
+
+  public static Document post(String permalink, int comments, long seed) {
+    return post(new Random(seed), permalink, comments, new Date());
+  }
+
+  // 70% of posts get up to 5 comments, 20% up to 50, 8% up to 500 and 2% up to 2000
+  public static int commentCount(Random random) {
+    int bucket = random.nextInt(100);
+    if (bucket < 70) {
+      return random.nextInt(6);
+    } else if (bucket < 90) {
+      return 5 + random.nextInt(46);
+    } else if (bucket < 98) {
+      return 50 + random.nextInt(451);
+    }
+    return 500 + random.nextInt(1501);
+  }
+
+  // comma separated tag input as typed into the new post form, including the odd duplicate
+  public static String tagInput(Random random, int tags) {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < tags; i++) {
+      if (i > 0) {
+        input.append(random.nextBoolean() ? ", " : ",");
+      }
+      input.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return input.toString();
+  }
+
+  public static String text(Random random, int words) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        text.append(i % 40 == 0 ? "\n" : " ");
+      }
+      text.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return text.toString();
+  }
+
+  private static Document post(Random random, String permalink, int comments, Date date) {
+    List<Document> commentList = new ArrayList<>(comments);
+    for (int i = 0; i < comments; i++) {
+      Document comment = new Document("author", "user" + random.nextInt(1000))
+          .append("body", text(random, 5 + random.nextInt(80)))
+          .append("num_likes", random.nextInt(20));
+      if (random.nextBoolean()) {
+        comment.append("email", "user" + i + "@example.com");
+      }
+      commentList.add(comment);
+    }
+    List<String> tags = new ArrayList<>();
+    for (int i = random.nextInt(5); i >= 0; i--) {
+      String tag = WORDS[random.nextInt(WORDS.length)];
+      if (!tags.contains(tag)) {
+        tags.add(tag);
+      }
+    }
+    // post bodies range from a paragraph to a long article
+    return new Document("_id", new ObjectId(date)).append("title", text(random, 3 + random.nextInt(8)))
+        .append("author", "author" + random.nextInt(20))
+        .append("body", text(random, 50 + random.nextInt(random.nextInt(10) == 0 ? 3000 : 400)))
+        .append("permalink", permalink).append("tags", tags).append("comments", commentList)
+        .append("comment_count", comments).append("date", date);
+  }
+}
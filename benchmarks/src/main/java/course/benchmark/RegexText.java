@@ -0,0 +1,61 @@
+package course.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// the regex based text handling the util classes replaced, kept as the reference the
+// benchmarks check the scanners against and measure them next to
+final class RegexText {
+
+  private RegexText() {
+    throw new UnsupportedOperationException();
+  }
+
+  static ArrayList<String> extractTags(String tags) {
+    tags = tags.replaceAll("\\s", "");
+    String tagArray[] = tags.split(",");
+
+    ArrayList<String> cleaned = new ArrayList<String>();
+    for (String tag : tagArray) {
+      if (!tag.equals("") && !cleaned.contains(tag)) {
+        cleaned.add(tag);
+      }
+    }
+    return cleaned;
+  }
+
+  static String slugify(String title) {
+    String permalink = title.replaceAll("\\s", "_");
+    permalink = permalink.replaceAll("\\W", "");
+    return permalink.toLowerCase();
+  }
+
+  static String paragraphs(String text) {
+    return text.replaceAll("\\r?\\n", "<p>");
+  }
+
+  static boolean validateSignup(String username, String password, String verify, String email,
+      HashMap<String, String> errors) {
+    errors.put("username_error", "");
+    errors.put("password_error", "");
+    errors.put("verify_error", "");
+    errors.put("email_error", "");
+    if (!username.matches("^[a-zA-Z0-9_-]{3,20}$")) {
+      errors.put("username_error", "invalid username. try just letters and numbers");
+      return false;
+    }
+    if (!password.matches("^.{3,20}$")) {
+      errors.put("password_error", "invalid password.");
+      return false;
+    }
+    if (!password.equals(verify)) {
+      errors.put("verify_error", "password must match");
+      return false;
+    }
+    if (!email.equals("") && !email.matches("^[\\S]+@[\\S]+\\.[\\S]+$")) {
+      errors.put("email_error", "Invalid Email Address");
+      return false;
+    }
+    return true;
+  }
+}
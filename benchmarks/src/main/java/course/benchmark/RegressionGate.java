@@ -0,0 +1,146 @@
+package course.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// runs the benchmarks with -prof gc and fails when one allocates more per operation than the
+// checked in baseline allows. allocation per operation barely moves between runs or machines,
+// unlike the time scores, which is what makes it usable as a gate on shared ci hosts. the
+// scores are still printed for a human to compare.
+//
+//   java -cp target/benchmarks.jar course.benchmark.RegressionGate baseline.properties
+//
+// -Dbenchmarks.include=<regex> picks the benchmarks, -Dbenchmarks.tolerance=0.1 is how much
+// growth passes and -Dbenchmarks.update=true rewrites the baseline from this run instead
+public final class RegressionGate {
+  private static final String ALLOCATION = "gc.alloc.rate.norm";
+  // tlab accounting makes a few bytes of noise, which matters for the near zero benchmarks
+  private static final double SLACK_BYTES = 64;
+
+  private RegressionGate() {
+    throw new UnsupportedOperationException();
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    if (args.length != 1) {
+      System.err.println("usage: RegressionGate <baseline.properties>");
+      System.exit(2);
+    }
+    Path baselineFile = Paths.get(args[0]);
+    double tolerance = Double.parseDouble(System.getProperty("benchmarks.tolerance", "0.1"));
+    boolean update = Boolean.getBoolean("benchmarks.update");
+
+    Options options = new OptionsBuilder()
+        .include(System.getProperty("benchmarks.include", "course\\.benchmark\\..*"))
+        .addProfiler(GCProfiler.class)
+        .warmupIterations(2)
+        .warmupTime(TimeValue.seconds(1))
+        .measurementIterations(3)
+        .measurementTime(TimeValue.seconds(1))
+        .forks(1)
+        .shouldFailOnError(true)
+        .build();
+    Map<String, Double> measured = new TreeMap<>();
+    for (RunResult result : new Runner(options).run()) {
+      measured.put(key(result), allocation(result));
+    }
+
+    Properties baseline = new Properties();
+    if (Files.exists(baselineFile)) {
+      try (Reader reader = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+        baseline.load(reader);
+      }
+    }
+    if (update) {
+      // benchmarks left out by the include pattern keep their baseline
+      Map<String, String> merged = new TreeMap<>();
+      for (String benchmark : baseline.stringPropertyNames()) {
+        merged.put(benchmark, baseline.getProperty(benchmark));
+      }
+      for (Map.Entry<String, Double> benchmark : measured.entrySet()) {
+        merged.put(benchmark.getKey(), String.valueOf(Math.round(benchmark.getValue())));
+      }
+      writeBaseline(baselineFile, merged);
+      System.out.println("Updated " + measured.size() + " baselines in " + baselineFile);
+      return;
+    }
+
+    List<String> regressions = new ArrayList<>();
+    for (Map.Entry<String, Double> benchmark : measured.entrySet()) {
+      String expected = baseline.getProperty(benchmark.getKey());
+      if (expected == null) {
+        System.out.println("No baseline for " + benchmark.getKey() + ", measured "
+            + Math.round(benchmark.getValue()) + " B/op");
+        continue;
+      }
+      double allowed = Double.parseDouble(expected) * (1 + tolerance) + SLACK_BYTES;
+      if (benchmark.getValue() > allowed) {
+        regressions.add(benchmark.getKey() + ": " + Math.round(benchmark.getValue())
+            + " B/op, baseline " + expected + " B/op");
+      }
+    }
+    if (!regressions.isEmpty()) {
+      System.err.println("Allocation regressions beyond " + Math.round(tolerance * 100) + "%:");
+      for (String regression : regressions) {
+        System.err.println("  " + regression);
+      }
+      System.exit(1);
+    }
+    System.out.println("No allocation regressions in " + measured.size() + " benchmarks");
+  }
+
+  // BlogPostDAOBenchmark.findByPermalink/comments-500, params in name order
+  private static String key(RunResult result) {
+    String benchmark = result.getParams().getBenchmark();
+    StringBuilder key = new StringBuilder(benchmark.substring("course.benchmark.".length()));
+    char separator = '/';
+    for (String param : new TreeSet<>(result.getParams().getParamsKeys())) {
+      key.append(separator).append(param).append('-').append(result.getParams().getParam(param));
+      separator = ',';
+    }
+    return key.toString();
+  }
+
+  private static double allocation(RunResult result) {
+    for (Map.Entry<String, Result> secondary :
+        result.getAggregatedResult().getSecondaryResults().entrySet()) {
+      // older jmh versions prefix the gc profiler's results with a middle dot
+      if (secondary.getKey().endsWith(ALLOCATION)) {
+        return secondary.getValue().getScore();
+      }
+    }
+    throw new IllegalStateException("no " + ALLOCATION + " for " + key(result)
+        + ", is the gc profiler supported on this jvm?");
+  }
+
+  // sorted and without the timestamp Properties.store writes, so updates diff cleanly
+  private static void writeBaseline(Path file, Map<String, String> baseline) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writer.write("# bytes allocated per operation, written by RegressionGate "
+          + "-Dbenchmarks.update=true\n");
+      for (Map.Entry<String, String> benchmark : baseline.entrySet()) {
+        writer.write(benchmark.getKey() + "=" + benchmark.getValue() + "\n");
+      }
+    }
+  }
+}
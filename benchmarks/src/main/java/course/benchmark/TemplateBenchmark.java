@@ -0,0 +1,109 @@
+package course.benchmark;
+
+import course.configuration.FreemarkerBasedRoute;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.SimpleHash;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// renders the pages the same way the routes do, into a StringWriter. wrapper=default is the old
+// setup, SimpleHash models under FreeMarker's DefaultObjectWrapper, bson is BsonObjectWrapper
+// with plain HashMap models. run with -prof gc to compare allocation per render, setUp refuses
+// to run unless both give the same page
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TemplateBenchmark {
+
+  @Param({"0", "50", "500"})
+  private int comments;
+
+  @Param({"default", "bson"})
+  private String wrapper;
+
+  private Template entryTemplate;
+  private Template postListTemplate;
+  private Document post;
+  private List<Document> posts;
+
+  @Setup
+  public void setUp() throws IOException, TemplateException {
+    post = PostFixtures.post("benchmark_post", comments, 42);
+    post.put("comment_offset", 0);
+    posts = PostFixtures.posts(10, 42);
+
+    String other = wrapper.equals("bson") ? "default" : "bson";
+    String[] expected = render(other);
+    String[] actual = render(wrapper);
+    if (!expected[0].equals(actual[0]) || !expected[1].equals(actual[1])) {
+      throw new IllegalStateException(wrapper + " and " + other + " render different pages");
+    }
+  }
+
+  // entry and post list page rendered with the given wrapper, leaves its templates in place
+  private String[] render(String wrapperName) throws IOException, TemplateException {
+    Configuration cfg = FreemarkerBasedRoute.createFreemarkerConfiguration();
+    if (wrapperName.equals("default")) {
+      cfg.setObjectWrapper(new DefaultObjectWrapper());
+    }
+    wrapper = wrapperName;
+    entryTemplate = cfg.getTemplate("entry_template.ftl");
+    postListTemplate = cfg.getTemplate("post_list.ftl");
+    return new String[]{renderEntry(), renderPostList()};
+  }
+
+  @Benchmark
+  public String renderEntry() throws IOException, TemplateException {
+    Map<String, Object> newComment = new HashMap<>();
+    newComment.put("name", "");
+    newComment.put("email", "");
+    newComment.put("body", "");
+
+    Map<String, Object> root = new HashMap<>();
+    root.put("post", post);
+    root.put("comment", newComment);
+    root.put("username", "benchmark");
+
+    StringWriter writer = new StringWriter();
+    entryTemplate.process(model(root), writer);
+    return writer.toString();
+  }
+
+  @Benchmark
+  public String renderPostList() throws IOException, TemplateException {
+    Map<String, Object> root = new HashMap<>();
+    root.put("myposts", posts);
+
+    StringWriter writer = new StringWriter();
+    postListTemplate.process(model(root), writer);
+    return writer.toString();
+  }
+
+  // the routes used to build SimpleHash roots, which wrap their values with the default wrapper
+  private Object model(Map<String, Object> root) {
+    return wrapper.equals("bson") ? root : new SimpleHash(root);
+  }
+}
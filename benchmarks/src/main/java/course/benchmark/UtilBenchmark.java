@@ -0,0 +1,130 @@
+package course.benchmark;
+
+import course.util.PermalinkUtil;
+import course.util.TagsUtil;
+import course.util.TextUtil;
+import course.util.ValidatorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// each scanner next to the regex version it replaced, run with -prof gc to compare allocation.
+// setUp refuses to run unless both give the same output on the fixtures and a fuzzed corpus
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+  private static final String FUZZ_ALPHABET = "ab_Z9-@., \t\r\n\u000B\f\u0085\u2028\u00e9!\uD83D\uDE00";
+
+  @Param({"3", "20"})
+  private int tags;
+
+  private String tagInput;
+  private String title;
+  private String body;
+  private final HashMap<String, String> errors = new HashMap<>();
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    tagInput = PostFixtures.tagInput(random, tags);
+    title = "Indexing " + PostFixtures.text(random, 8) + " & more!";
+    body = PostFixtures.text(random, 400).replace("\n", "\r\n");
+    verify(tagInput, title, body, "some_user-42", "secret-password", "some.user@example.com");
+
+    for (int i = 0; i < 100000; i++) {
+      String text = fuzz(random);
+      verify(text, text, text, text, text, text);
+    }
+  }
+
+  @Benchmark
+  public ArrayList<String> extractTags() {
+    return TagsUtil.extractTags(tagInput);
+  }
+
+  @Benchmark
+  public ArrayList<String> extractTagsRegex() {
+    return RegexText.extractTags(tagInput);
+  }
+
+  @Benchmark
+  public String slugify() {
+    return PermalinkUtil.slugify(title);
+  }
+
+  @Benchmark
+  public String slugifyRegex() {
+    return RegexText.slugify(title);
+  }
+
+  @Benchmark
+  public String paragraphs() {
+    return TextUtil.paragraphs(body);
+  }
+
+  @Benchmark
+  public String paragraphsRegex() {
+    return RegexText.paragraphs(body);
+  }
+
+  @Benchmark
+  public boolean validateSignup() {
+    return ValidatorUtil.validateSignup("some_user-42", "secret-password", "secret-password",
+        "some.user@example.com", errors);
+  }
+
+  @Benchmark
+  public boolean validateSignupRegex() {
+    return RegexText.validateSignup("some_user-42", "secret-password", "secret-password",
+        "some.user@example.com", errors);
+  }
+
+  private void verify(String tags, String title, String body, String username, String password,
+      String email) {
+    check("extractTags", tags, TagsUtil.extractTags(tags), RegexText.extractTags(tags));
+    String slug = RegexText.slugify(title);
+    // the scanner names symbol-only titles "post" instead of leaving the permalink empty
+    check("slugify", title, PermalinkUtil.slugify(title), slug.isEmpty() ? "post" : slug);
+    check("paragraphs", body, TextUtil.paragraphs(body), RegexText.paragraphs(body));
+    HashMap<String, String> scannerErrors = new HashMap<>();
+    HashMap<String, String> regexErrors = new HashMap<>();
+    boolean valid = ValidatorUtil.validateSignup(username, password, password, email,
+        scannerErrors);
+    check("validateSignup", username + " / " + password + " / " + email, valid,
+        RegexText.validateSignup(username, password, password, email, regexErrors));
+    check("validateSignup errors", username, scannerErrors, regexErrors);
+  }
+
+  private static void check(String what, String input, Object actual, Object expected) {
+    if (!actual.equals(expected)) {
+      throw new IllegalStateException(what + " differs from the regex version for \""
+          + input + "\": " + actual + " != " + expected);
+    }
+  }
+
+  private static String fuzz(Random random) {
+    int length = random.nextInt(30);
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      text.append(FUZZ_ALPHABET.charAt(random.nextInt(FUZZ_ALPHABET.length())));
+    }
+    return text.toString();
+  }
+}
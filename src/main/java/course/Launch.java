@@ -2,46 +2,389 @@ package course;
 
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.async.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
+import course.cache.ExpiringCache;
+import course.cache.FeedCache;
+import course.cache.PageCache;
 import course.configuration.FreemarkerBasedRoute;
+import course.configuration.HandlerExecutor;
 import course.controller.BlogPostController;
+import course.controller.FeedController;
+import course.controller.MetricsController;
+import course.controller.StaticSiteExporter;
+import course.controller.TagController;
 import course.controller.UserController;
+import course.dao.AsyncBlogPostDAO;
+import course.dao.AsyncSessionDAO;
 import course.dao.BlogPostDAO;
+import course.dao.BucketedCommentDAO;
+import course.dao.IndexManager;
+import course.dao.InvalidationBus;
+import course.dao.InvertedIndex;
+import course.dao.LikeBatcher;
+import course.dao.PermalinkIndex;
+import course.dao.PostExporter;
+import course.dao.PostImporter;
 import course.dao.SessionDAO;
+import course.dao.SessionStore;
+import course.dao.SignedSessionStore;
+import course.dao.TagStatsDAO;
 import course.dao.UserDAO;
+import course.metrics.Metrics;
+import course.security.LegacyMd5PasswordHasher;
+import course.security.LoginThrottle;
+import course.security.PasswordService;
+import course.security.Pbkdf2PasswordHasher;
 import freemarker.template.Configuration;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import static spark.Spark.setPort;
 
 public class Launch {
+  private static final int DEFAULT_PORT = 8082;
 
   private final Configuration cfg;
 
+  // usage: [--rebuild-tags] [--migrate-comments] [--import file] [--export file]
+  // [--static-export dir] [mongodb uri].
+  // without options the blog is started
   public static void main(String[] args) throws IOException {
-    if (args.length == 0) {
-      new Launch("mongodb://localhost");
+    String mongoURIString = "mongodb://localhost";
+    List<String[]> commands = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith("--")) {
+        boolean takesValue = arg.equals("--import") || arg.equals("--export")
+            || arg.equals("--static-export");
+        if (takesValue && i + 1 == args.length) {
+          throw new IllegalArgumentException(arg + " needs a path");
+        }
+        commands.add(new String[]{arg, takesValue ? args[++i] : null});
+      } else {
+        mongoURIString = arg;
+      }
+    }
+
+    if (commands.isEmpty()) {
+      new Launch(mongoURIString);
     } else {
-      new Launch(args[0]);
+      runCommands(mongoURIString, commands);
     }
   }
 
+  // maintenance tasks that run against the database and exit instead of serving the blog
+  private static void runCommands(String mongoURIString, List<String[]> commands)
+      throws IOException {
+    MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoURIString));
+    try {
+      MongoDatabase blogDatabase = mongoClient.getDatabase("blog");
+      int batchSize = Integer.getInteger("blog.transfer.batch", PostImporter.DEFAULT_BATCH_SIZE);
+      for (String[] command : commands) {
+        switch (command[0]) {
+          case "--rebuild-tags":
+            rebuildTags(blogDatabase);
+            break;
+          case "--migrate-comments":
+            int migrated = new BucketedCommentDAO(blogDatabase, commentBucketSize())
+                .migrateEmbeddedComments();
+            System.out.println("Moved the comments of " + migrated + " posts into buckets");
+            break;
+          case "--import":
+            // permalinks are only kept unique by the index, so it has to exist first
+            IndexManager indexManager = new IndexManager(blogDatabase);
+            new BlogPostDAO(blogDatabase).declareIndexes(indexManager);
+            PostImporter importer = new PostImporter(blogDatabase, batchSize,
+                Boolean.getBoolean("blog.import.escaped"));
+            if (bucketedComments()) {
+              BucketedCommentDAO buckets = new BucketedCommentDAO(blogDatabase, commentBucketSize());
+              buckets.declareIndexes(indexManager);
+              importer.enableBucketedComments(buckets);
+            }
+            for (String problem : indexManager.ensureIndexes()) {
+              System.out.println("WARNING: " + problem);
+            }
+            importer.importFrom(Paths.get(command[1]));
+            rebuildTags(blogDatabase);
+            break;
+          case "--export":
+            new PostExporter(blogDatabase, batchSize).exportTo(Paths.get(command[1]));
+            break;
+          case "--static-export":
+            BlogPostDAO blogPostDAO = new BlogPostDAO(blogDatabase);
+            if (bucketedComments()) {
+              blogPostDAO.enableBucketedComments(
+                  new BucketedCommentDAO(blogDatabase, commentBucketSize()));
+            }
+            int threads = Integer.getInteger("blog.export.threads",
+                Runtime.getRuntime().availableProcessors());
+            new StaticSiteExporter(blogPostDAO, FreemarkerBasedRoute.createFreemarkerConfiguration(),
+                threads).export(Paths.get(command[1]), !Boolean.getBoolean("blog.export.full"));
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + command[0]);
+        }
+      }
+    } finally {
+      mongoClient.close();
+    }
+  }
+
+  private static void rebuildTags(MongoDatabase blogDatabase) {
+    TagStatsDAO tagStatsDAO =
+        new TagStatsDAO(blogDatabase, TagStatsDAO.DEFAULT_REFRESH_INTERVAL_MILLIS);
+    tagStatsDAO.rebuild();
+    tagStatsDAO.shutdown();
+    System.out.println("Rebuilt tag_stats, " + tagStatsDAO.getTags().size() + " tags");
+  }
+
   public Launch(String mongoURIString) throws IOException {
     final MongoClient mongoClient = new MongoClient(new MongoClientURI(mongoURIString));
     final MongoDatabase blogDatabase = mongoClient.getDatabase("blog");
 
-    cfg = FreemarkerBasedRoute.createFreemarkerConfiguration();
+    cfg = FreemarkerBasedRoute.createFreemarkerConfiguration(Integer.getInteger(
+        "blog.templates.updateDelay", FreemarkerBasedRoute.DEFAULT_TEMPLATE_UPDATE_DELAY_SECONDS));
+    FreemarkerBasedRoute.setStreaming(Boolean.getBoolean("blog.render.streaming"));
+    FreemarkerBasedRoute.setGzip(
+        Boolean.parseBoolean(System.getProperty("blog.render.gzip", "true")));
+    FreemarkerBasedRoute.setHandlerExecutor(createHandlerExecutor(mongoClient));
 
-    setPort(8082);
+    int port = Integer.getInteger("blog.port", DEFAULT_PORT);
+    setPort(port);
 
     BlogPostDAO blogPostDAO = new BlogPostDAO(blogDatabase);
-    SessionDAO sessionDAO = new SessionDAO(blogDatabase);
-    UserDAO userDAO = new UserDAO(blogDatabase);
+    long sessionTtlSeconds = Long.getLong("blog.session.ttl", SessionDAO.DEFAULT_SESSION_TTL_SECONDS);
+    SessionDAO sessionDAO = new SessionDAO(blogDatabase,
+        Integer.getInteger("blog.session.cache.size", SessionDAO.DEFAULT_CACHE_SIZE),
+        Long.getLong("blog.session.cache.ttl", SessionDAO.DEFAULT_CACHE_TTL_MILLIS),
+        sessionTtlSeconds);
+    UserDAO userDAO = new UserDAO(blogDatabase, createPasswordService());
+    TagStatsDAO tagStatsDAO = new TagStatsDAO(blogDatabase,
+        Long.getLong("blog.tags.refresh", TagStatsDAO.DEFAULT_REFRESH_INTERVAL_MILLIS));
+
+    BucketedCommentDAO bucketedCommentDAO = null;
+    if (bucketedComments()) {
+      bucketedCommentDAO = new BucketedCommentDAO(blogDatabase, commentBucketSize());
+      blogPostDAO.enableBucketedComments(bucketedCommentDAO);
+    }
+
+    SignedSessionStore signedSessionStore = null;
+    if ("signed".equals(System.getProperty("blog.session.backend", "mongo"))) {
+      signedSessionStore =
+          new SignedSessionStore(blogDatabase, sessionSecret(), sessionTtlSeconds);
+    }
+
+    IndexManager indexManager = new IndexManager(blogDatabase);
+    blogPostDAO.declareIndexes(indexManager);
+    if (bucketedCommentDAO != null) {
+      bucketedCommentDAO.declareIndexes(indexManager);
+    }
+    sessionDAO.declareIndexes(indexManager);
+    if (signedSessionStore != null) {
+      signedSessionStore.declareIndexes(indexManager);
+    }
+    userDAO.declareIndexes(indexManager);
+    tagStatsDAO.declareIndexes(indexManager);
+    indexManager.bootstrap(Boolean.getBoolean("blog.indexes.strict"));
+
+    int backfilled = blogPostDAO.backfillCommentCounts();
+    if (backfilled > 0) {
+      System.out.println("Backfilled comment_count on " + backfilled + " posts");
+    }
+
+    if (bucketedCommentDAO != null && bucketedCommentDAO.countUnmigratedPosts() > 0) {
+      System.out.println("WARNING: " + bucketedCommentDAO.countUnmigratedPosts()
+          + " posts still have embedded comments that won't be shown, run --migrate-comments");
+    }
+
+    // deployments from before tag_stats existed get it computed once
+    if (tagStatsDAO.isEmpty()) {
+      tagStatsDAO.rebuild();
+      System.out.println("Built tag_stats, " + tagStatsDAO.getTags().size() + " tags");
+    }
+    blogPostDAO.addListener(tagStatsDAO);
+
+    PermalinkIndex permalinkIndex = null;
+    if (Boolean.getBoolean("blog.permalinks.index")) {
+      permalinkIndex = blogPostDAO.enablePermalinkIndex(
+          Integer.getInteger("blog.permalinks.cache.size", PermalinkIndex.DEFAULT_CACHE_SIZE),
+          Long.getLong("blog.permalinks.refresh", PermalinkIndex.DEFAULT_REFRESH_INTERVAL_MILLIS));
+    }
+
+    if (Boolean.getBoolean("blog.search.inverted")) {
+      InvertedIndex invertedIndex = blogPostDAO.enableInvertedIndex();
+      System.out.println("Search index holds " + invertedIndex.getTermCount() + " terms over "
+          + invertedIndex.getPostCount() + " posts");
+      Metrics.gauge("blog_search_terms", "Distinct terms in the in-process search index",
+          invertedIndex::getTermCount);
+    }
+
+    if (Boolean.getBoolean("blog.likes.batch")) {
+      LikeBatcher likeBatcher = blogPostDAO.enableLikeBatching(
+          Long.getLong("blog.likes.flush.interval", LikeBatcher.DEFAULT_FLUSH_INTERVAL_MILLIS),
+          Integer.getInteger("blog.likes.flush.size", LikeBatcher.DEFAULT_MAX_PENDING));
+      Runtime.getRuntime().addShutdownHook(new Thread(likeBatcher::shutdown, "like-batcher-drain"));
+
+      Metrics.counter("blog_likes_received_total", "Likes queued since startup",
+          likeBatcher::getLikesReceived);
+      Metrics.counter("blog_likes_written_total", "Likes written to mongo",
+          likeBatcher::getLikesWritten);
+      Metrics.counter("blog_likes_dropped_total", "Likes lost to failed flushes",
+          likeBatcher::getLikesDropped);
+      Metrics.gauge("blog_likes_pending", "Likes waiting for the next flush",
+          likeBatcher::getPendingLikes);
+      Metrics.counter("blog_likes_flushes_total", "Bulk writes issued by the like batcher",
+          likeBatcher::getFlushes);
+    }
+
+    PageCache pageCache = new PageCache(
+        Integer.getInteger("blog.page.cache.size", PageCache.DEFAULT_SIZE),
+        Long.getLong("blog.page.cache.ttl", PageCache.DEFAULT_TTL_MILLIS));
+    blogPostDAO.addListener(pageCache);
+    FeedCache feedCache = new FeedCache(
+        Integer.getInteger("blog.feed.cache.size", FeedCache.DEFAULT_SIZE),
+        Long.getLong("blog.feed.cache.ttl", FeedCache.DEFAULT_TTL_MILLIS));
+    blogPostDAO.addListener(feedCache);
+
+    SessionStore sessionStore = sessionDAO;
+    if (signedSessionStore != null) {
+      System.out.println("Loaded " + signedSessionStore.loadRevocations()
+          + " logged out signed sessions");
+      Metrics.gauge("blog_sessions_revoked", "Logged out signed sessions that haven't expired yet",
+          signedSessionStore::getRevokedCount);
+      sessionStore = signedSessionStore;
+    }
+
+    if (Boolean.getBoolean("blog.mongo.async")) {
+      // post and session lookups of one request run concurrently on the async driver
+      com.mongodb.async.client.MongoDatabase asyncDatabase =
+          MongoClients.create(mongoURIString).getDatabase("blog");
+      blogPostDAO.enableAsyncReads(new AsyncBlogPostDAO(asyncDatabase));
+      if (sessionStore == sessionDAO) {
+        sessionStore = new AsyncSessionDAO(asyncDatabase, sessionDAO);
+      }
+    }
+
+    if (Boolean.getBoolean("blog.invalidation.bus")) {
+      InvalidationBus bus = new InvalidationBus(blogDatabase,
+          Long.getLong("blog.invalidation.size", InvalidationBus.DEFAULT_SIZE_BYTES));
+      blogPostDAO.addListener(bus);
+      sessionDAO.addListener(bus);
+      // other nodes' writes evict the same caches this node's own writes do
+      bus.addPostListener(pageCache);
+      bus.addPostListener(feedCache);
+      if (permalinkIndex != null) {
+        bus.addPostListener(permalinkIndex);
+      }
+      if (sessionStore instanceof SignedSessionStore) {
+        ((SignedSessionStore) sessionStore).addListener(bus);
+        bus.addSessionListener((SignedSessionStore) sessionStore);
+      } else {
+        bus.addSessionListener(sessionDAO);
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(bus::shutdown, "invalidation-bus-stop"));
+      System.out.println("Invalidation bus started, this node is " + bus.getNode());
+    }
+
+    exposeCache("session", sessionDAO.getSessionCache());
+    exposeCache("page", pageCache.getPages());
+    exposeCache("feed", feedCache.getFeeds());
+    if (permalinkIndex != null) {
+      exposeCache("permalink", permalinkIndex.getIds());
+    }
+
+    new BlogPostController(blogPostDAO, cfg, sessionStore, pageCache);
+    new FeedController(blogPostDAO, cfg, feedCache,
+        System.getProperty("blog.url", "http://localhost:" + port));
+    LoginThrottle loginThrottle = new LoginThrottle(
+        Integer.getInteger("blog.login.limit.username", LoginThrottle.DEFAULT_ATTEMPTS_PER_USERNAME),
+        Integer.getInteger("blog.login.limit.address", LoginThrottle.DEFAULT_ATTEMPTS_PER_ADDRESS),
+        Long.getLong("blog.login.limit.window", LoginThrottle.DEFAULT_WINDOW_MILLIS));
+    Metrics.gauge("blog_login_throttle_tracked", "Usernames and addresses with a login window open",
+        loginThrottle::getTracked);
+
+    new UserController(userDAO, cfg, sessionStore, loginThrottle);
+    new TagController(tagStatsDAO, cfg, sessionStore);
+    new MetricsController();
+  }
+
+  private static boolean bucketedComments() {
+    return "bucketed".equals(System.getProperty("blog.comments.storage", "embedded"));
+  }
+
+  // has to stay the same once comments are stored in buckets
+  private static int commentBucketSize() {
+    return Integer.getInteger("blog.comments.bucket.size", BucketedCommentDAO.DEFAULT_BUCKET_SIZE);
+  }
+
+  private static PasswordService createPasswordService() {
+    int iterations = Integer.getInteger("blog.password.iterations",
+        Pbkdf2PasswordHasher.DEFAULT_ITERATIONS);
+    int threads = Integer.getInteger("blog.password.threads", PasswordService.defaultThreads());
+    PasswordService passwordService = new PasswordService(new Pbkdf2PasswordHasher(iterations),
+        threads, Integer.getInteger("blog.password.queue", PasswordService.DEFAULT_QUEUE_SIZE),
+        new LegacyMd5PasswordHasher());
+
+    System.out.println("Passwords are hashed with PBKDF2 at " + iterations + " iterations on "
+        + threads + " threads");
+    Metrics.gauge("blog_password_hashing_queued", "Password hashes waiting for a hashing thread",
+        passwordService::getQueued);
+    Metrics.counter("blog_password_hashing_rejected_total",
+        "Logins and signups turned away as too busy", passwordService::getRejected);
+    return passwordService;
+  }
+
+  // null unless blog.mongo.maxConcurrency is set, handlers are then not limited and requests
+  // queue in jetty and the driver as they always did
+  private static HandlerExecutor createHandlerExecutor(MongoClient mongoClient) {
+    MongoClientOptions options = mongoClient.getMongoClientOptions();
+    Integer maxConcurrency = Integer.getInteger("blog.mongo.maxConcurrency");
+    if (maxConcurrency == null) {
+      return null;
+    }
+    long acquireTimeout = Long.getLong("blog.mongo.acquireTimeout",
+        HandlerExecutor.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    HandlerExecutor executor = new HandlerExecutor(maxConcurrency, acquireTimeout);
+
+    System.out.println("At most " + maxConcurrency + " route handlers run at once (waiting up to "
+        + acquireTimeout + "ms), mongo pool: " + options.getConnectionsPerHost()
+        + " connections per host, " + options.getThreadsAllowedToBlockForConnectionMultiplier()
+        + "x allowed to wait");
+
+    Metrics.gauge("blog_handler_permits_available", "Handlers that may still start right now",
+        executor::getAvailablePermits);
+    return executor;
+  }
+
+  // every node has to sign with the same secret, a random one only works for a single node
+  private static byte[] sessionSecret() {
+    String secret = System.getProperty("blog.session.secret");
+    if (secret != null) {
+      return secret.getBytes(StandardCharsets.UTF_8);
+    }
+    System.out.println("WARNING: blog.session.secret is not set, signed sessions won't survive "
+        + "a restart or work across nodes");
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    return random;
+  }
 
-    new BlogPostController(blogPostDAO, cfg, sessionDAO);
-    new UserController(userDAO, cfg, sessionDAO);
+  private static void exposeCache(String name, ExpiringCache<?, ?> cache) {
+    Metrics.counter("blog_cache_hits_total", "Cache lookups that found an entry", cache::getHits,
+        "cache", name);
+    Metrics.counter("blog_cache_misses_total", "Cache lookups that missed", cache::getMisses,
+        "cache", name);
+    Metrics.counter("blog_cache_evictions_total", "Entries evicted to stay within the size bound",
+        cache::getEvictions, "cache", name);
+    Metrics.gauge("blog_cache_size", "Entries currently cached", cache::size, "cache", name);
   }
 
 }
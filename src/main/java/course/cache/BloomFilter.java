@@ -0,0 +1,72 @@
+package course.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// concurrent bloom filter over strings. mightContain never returns false for an added value
+public class BloomFilter {
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+
+  // sized for the expected number of values at the given false positive rate, e.g. 0.01
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    long expected = Math.max(1, expectedInsertions);
+    long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate)
+        / (Math.log(2) * Math.log(2)));
+    int words = (int) Math.max(1, (optimalBits + 63) / 64);
+    bits = new AtomicLongArray(words);
+    bitCount = words * 64L;
+    hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+  }
+
+  public void add(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long current;
+      do {
+        current = bits.get(word);
+        if ((current & mask) != 0) {
+          break;
+        }
+      } while (!bits.compareAndSet(word, current, current | mask));
+    }
+  }
+
+  public boolean mightContain(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long index(int combinedHash) {
+    return (combinedHash & Integer.MAX_VALUE) % bitCount;
+  }
+
+  // 64 bit FNV-1a over the utf-8 bytes, finished with a murmur3 mix for better bit spread
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,150 @@
+package course.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// bounded concurrent cache, entries expire after a fixed ttl and the oldest entries are evicted
+// first once the cache grows past its maximum size
+public class ExpiringCache<K, V> {
+
+  private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+  private final Queue<Entry<K, V>> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final int maxSize;
+  private final long ttlMillis;
+
+  public ExpiringCache(int maxSize, long ttlMillis) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public V get(K key) {
+    Entry<K, V> entry = entries.get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (entry.isExpired(System.currentTimeMillis())) {
+      remove(entry);
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  public void put(K key, V value) {
+    Entry<K, V> entry = new Entry<>(key, value, System.currentTimeMillis() + ttlMillis);
+    Entry<K, V> previous = entries.put(key, entry);
+    if (previous == null) {
+      size.incrementAndGet();
+    }
+    insertionOrder.add(entry);
+    queued.incrementAndGet();
+    evictIfNeeded();
+  }
+
+  public void invalidate(K key) {
+    if (entries.remove(key) != null) {
+      size.decrementAndGet();
+    }
+  }
+
+  public void invalidateIf(Predicate<K> predicate) {
+    for (K key : entries.keySet()) {
+      if (predicate.test(key)) {
+        invalidate(key);
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    invalidateIf(key -> true);
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private void evictIfNeeded() {
+    long now = System.currentTimeMillis();
+    while (size.get() > maxSize) {
+      Entry<K, V> oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      queued.decrementAndGet();
+      // the queue may still hold entries that were replaced or invalidated since
+      if (remove(oldest) && !oldest.isExpired(now)) {
+        evictions.incrementAndGet();
+      }
+    }
+    // keep the queue from growing with dead entries when the same keys are re-put
+    if (queued.get() > maxSize * 2) {
+      insertionOrder.removeIf(entry -> {
+        if (entries.get(entry.key) != entry) {
+          queued.decrementAndGet();
+          return true;
+        }
+        return false;
+      });
+    }
+  }
+
+  private boolean remove(Entry<K, V> entry) {
+    if (entries.remove(entry.key, entry)) {
+      size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private static final class Entry<K, V> {
+    private final K key;
+    private final V value;
+    private final long expiresAt;
+
+    private Entry(K key, V value, long expiresAt) {
+      this.key = key;
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ExpiringCache{size=" + size() + ", maxSize=" + maxSize + ", ttlMillis=" + ttlMillis
+        + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+  }
+}
@@ -0,0 +1,113 @@
+package course.cache;
+
+import course.configuration.PageVersion;
+import course.dao.PostListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+// serialized atom feeds of the home page and of each tag, plain and gzipped. a feed only
+// changes when a post is added to it, so everything else a request needs is computed once
+public class FeedCache implements PostListener {
+  public static final int DEFAULT_SIZE = 1000;
+  // only a backstop for posts added on other nodes when no invalidation bus runs
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final String HOME_KEY = "home";
+  private static final String TAG_KEY_PREFIX = "tag:";
+
+  private final ExpiringCache<String, Feed> feeds;
+  // bumped on every post so a feed rendered while one was added is never kept
+  private final AtomicLong generation = new AtomicLong();
+
+  public FeedCache(int maxSize, long ttlMillis) {
+    feeds = new ExpiringCache<>(maxSize, ttlMillis);
+  }
+
+  // tag is null for the home feed
+  private static String key(String tag) {
+    return tag == null ? HOME_KEY : TAG_KEY_PREFIX + tag;
+  }
+
+  public long generation() {
+    return generation.get();
+  }
+
+  public Feed get(String tag) {
+    return feeds.get(key(tag));
+  }
+
+  // caches a feed rendered from posts read at the given generation
+  public void put(String tag, Feed feed, long readGeneration) {
+    if (generation.get() != readGeneration) {
+      return;
+    }
+    feeds.put(key(tag), feed);
+    // a post may have slipped in between the check and the put
+    if (generation.get() != readGeneration) {
+      feeds.invalidate(key(tag));
+    }
+  }
+
+  public ExpiringCache<String, Feed> getFeeds() {
+    return feeds;
+  }
+
+  @Override
+  public void postAdded(String permalink, List<String> tags) {
+    generation.incrementAndGet();
+    feeds.invalidate(HOME_KEY);
+    if (tags != null) {
+      for (String tag : tags) {
+        feeds.invalidate(key(tag));
+      }
+    }
+  }
+
+  // comments and likes aren't part of a feed
+
+  public static final class Feed {
+    private final byte[] xml;
+    private final byte[] gzipped;
+    private final int entries;
+    private final PageVersion version;
+
+    public Feed(byte[] xml, int entries, PageVersion version) {
+      this.xml = xml.clone();
+      this.gzipped = gzip(xml);
+      this.entries = entries;
+      this.version = version;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public PageVersion getVersion() {
+      return version;
+    }
+
+    public int length(boolean gzip) {
+      return gzip ? gzipped.length : xml.length;
+    }
+
+    public void writeTo(OutputStream out, boolean gzip) throws IOException {
+      out.write(gzip ? gzipped : xml);
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+        out.write(bytes);
+      } catch (IOException e) {
+        throw new IllegalStateException("gzip into memory failed", e);
+      }
+      return compressed.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package course.cache;
+
+import course.dao.PageCursor;
+import course.dao.PostListener;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// rendered post lists for the home page and tag pages, invalidated by the writes that change them
+public class PageCache implements PostListener {
+  public static final int DEFAULT_SIZE = 1000;
+  public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+  private static final String HOME_KEY = "home#";
+  private static final String TAG_KEY_PREFIX = "tag:";
+
+  private final ExpiringCache<String, String> pages;
+  // bumped on every write so a render that raced with a write is never kept
+  private final AtomicLong generation = new AtomicLong();
+  // generations only mean something on this node and in this run
+  private final String instance = Long.toString(System.currentTimeMillis(), 36);
+  // when the lists last changed, set once the old pages are gone
+  private volatile long changedAt = System.currentTimeMillis();
+
+  public PageCache() {
+    this(DEFAULT_SIZE, DEFAULT_TTL_MILLIS);
+  }
+
+  public PageCache(int maxSize, long ttlMillis) {
+    pages = new ExpiringCache<>(maxSize, ttlMillis);
+  }
+
+  // before is the parsed page cursor, null for the first page. keyed on the parsed cursor so
+  // spellings of the same position, or junk that renders the first page, share one entry
+  public static String homeKey(PageCursor before) {
+    return HOME_KEY + (before == null ? "" : before);
+  }
+
+  public static String tagKey(String tag, PageCursor before) {
+    return tagPrefix(tag) + (before == null ? "" : before);
+  }
+
+  private static String tagPrefix(String tag) {
+    return TAG_KEY_PREFIX + tag + "#";
+  }
+
+  public long generation() {
+    return generation.get();
+  }
+
+  // names what the lists look like on this node, lets list pages answer conditional GETs
+  // without asking mongo. read changedAt() first: a write in between then makes the page look
+  // older than it is, never newer
+  public String versionTag() {
+    return instance + "-" + generation.get();
+  }
+
+  public long changedAt() {
+    return changedAt;
+  }
+
+  public String get(String key) {
+    return pages.get(key);
+  }
+
+  // caches a page rendered from data read at the given generation
+  public void put(String key, String html, long readGeneration) {
+    if (generation.get() != readGeneration) {
+      return;
+    }
+    pages.put(key, html);
+    // a write may have slipped in between the check and the put
+    if (generation.get() != readGeneration) {
+      pages.invalidate(key);
+    }
+  }
+
+  public void invalidateHome() {
+    generation.incrementAndGet();
+    pages.invalidateIf(key -> key.startsWith(HOME_KEY));
+    changedAt = System.currentTimeMillis();
+  }
+
+  public void invalidateTags(List<String> tags) {
+    generation.incrementAndGet();
+    if (tags != null) {
+      for (String tag : tags) {
+        String prefix = tagPrefix(tag);
+        pages.invalidateIf(key -> key.startsWith(prefix));
+      }
+    }
+    changedAt = System.currentTimeMillis();
+  }
+
+  public ExpiringCache<String, String> getPages() {
+    return pages;
+  }
+
+  @Override
+  public void postAdded(String permalink, List<String> tags) {
+    invalidateHome();
+    invalidateTags(tags);
+  }
+
+  @Override
+  public void commentAdded(String permalink, List<String> tags) {
+    // the comment count is shown on the list pages
+    invalidateHome();
+    invalidateTags(tags);
+  }
+
+  // likes are only shown on the post page, so liking a comment leaves cached lists intact
+}
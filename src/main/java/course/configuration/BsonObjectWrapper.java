@@ -0,0 +1,144 @@
+package course.configuration;
+
+import freemarker.template.AdapterTemplateModel;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.SimpleCollection;
+import freemarker.template.SimpleDate;
+import freemarker.template.SimpleScalar;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateSequenceModel;
+import freemarker.template.WrappingTemplateModel;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// wraps the Documents, lists and dates the DAOs return without copying them. the default
+// wrapper copies a Map into a SimpleHash and a List into a SimpleSequence the first time a
+// template touches them, so every comment of a post was copied on every render. these models
+// read straight from the underlying objects and keep the model of each nested document or list
+// for the rest of the render. anything else is wrapped the way DefaultObjectWrapper does
+public class BsonObjectWrapper extends DefaultObjectWrapper {
+
+  @Override
+  public TemplateModel wrap(Object obj) throws TemplateModelException {
+    if (obj instanceof Map) {
+      return new MapModel((Map<?, ?>) obj, this);
+    }
+    if (obj instanceof List) {
+      return new ListModel((List<?>) obj, this);
+    }
+    if (obj != null && obj.getClass() == Date.class) {
+      // like the default wrapper, the templates pick date or time with ?datetime
+      return new SimpleDate((Date) obj, getDefaultDateType());
+    }
+    if (obj instanceof ObjectId) {
+      // would otherwise get a reflective bean model just to print its hex string
+      return new SimpleScalar(obj.toString());
+    }
+    return super.wrap(obj);
+  }
+
+  private static boolean isContainer(Object value) {
+    return value instanceof Map || value instanceof List;
+  }
+
+  private static final class MapModel extends WrappingTemplateModel
+      implements TemplateHashModelEx, AdapterTemplateModel {
+    private final Map<?, ?> map;
+    // scalars are cheap to wrap again, documents and lists are wrapped once
+    private Map<String, TemplateModel> containers;
+
+    private MapModel(Map<?, ?> map, ObjectWrapper wrapper) {
+      super(wrapper);
+      this.map = map;
+    }
+
+    @Override
+    public TemplateModel get(String key) throws TemplateModelException {
+      Object value = map.get(key);
+      if (!isContainer(value)) {
+        return value == null ? null : wrap(value);
+      }
+      if (containers == null) {
+        containers = new HashMap<>(4);
+      }
+      TemplateModel model = containers.get(key);
+      if (model == null) {
+        model = wrap(value);
+        containers.put(key, model);
+      }
+      return model;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return map.isEmpty();
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public TemplateCollectionModel keys() {
+      return new SimpleCollection(map.keySet(), getObjectWrapper());
+    }
+
+    @Override
+    public TemplateCollectionModel values() {
+      return new SimpleCollection(map.values(), getObjectWrapper());
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // freemarker 2.3.19 declares it with a raw Class
+    public Object getAdaptedObject(Class hint) {
+      return map;
+    }
+  }
+
+  private static final class ListModel extends WrappingTemplateModel
+      implements TemplateSequenceModel, AdapterTemplateModel {
+    private final List<?> list;
+    private TemplateModel[] models;
+
+    private ListModel(List<?> list, ObjectWrapper wrapper) {
+      super(wrapper);
+      this.list = list;
+    }
+
+    @Override
+    public TemplateModel get(int index) throws TemplateModelException {
+      if (index < 0 || index >= list.size()) {
+        return null;
+      }
+      if (models == null) {
+        models = new TemplateModel[list.size()];
+      }
+      TemplateModel model = models[index];
+      if (model == null) {
+        model = wrap(list.get(index));
+        models[index] = model;
+      }
+      return model;
+    }
+
+    @Override
+    public int size() {
+      return list.size();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // freemarker 2.3.19 declares it with a raw Class
+    public Object getAdaptedObject(Class hint) {
+      return list;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package course.configuration;
 
+import course.metrics.Metrics;
+import freemarker.cache.MruCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -7,32 +9,254 @@ import spark.Request;
 import spark.Response;
 import spark.Route;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class FreemarkerBasedRoute extends Route {
 
+  // templates ship in the jar and don't change while the blog runs
+  public static final int DEFAULT_TEMPLATE_UPDATE_DELAY_SECONDS = Integer.MAX_VALUE;
+  private static final int TEMPLATE_CACHE_SIZE = 50;
+
+  // render straight to the response instead of buffering the whole page in a String
+  private static volatile boolean streaming;
+  private static volatile boolean gzip;
+  // null leaves handlers unlimited
+  private static volatile HandlerExecutor handlerExecutor;
+
+  private final String path;
   private final Template template;
 
   protected FreemarkerBasedRoute(final String path, final String templateName, Configuration cfg)
       throws IOException {
     super(path);
+    this.path = path;
     template = cfg.getTemplate(templateName);
   }
 
+  public static void setStreaming(boolean enabled) {
+    streaming = enabled;
+  }
+
+  public static boolean isStreaming() {
+    return streaming;
+  }
+
+  // compress pages for clients that accept gzip
+  public static void setGzip(boolean enabled) {
+    gzip = enabled;
+  }
+
+  public static boolean isGzip() {
+    return gzip;
+  }
+
+  public static void setHandlerExecutor(HandlerExecutor executor) {
+    handlerExecutor = executor;
+  }
+
   @Override
   public Object handle(Request request, Response response) {
+    long start = System.nanoTime();
+    Metrics.RequestTimings timings = Metrics.startRequest();
+    String route = request.requestMethod() + " " + path;
+    if (gzip) {
+      response.raw().addHeader("Vary", "Accept-Encoding");
+    }
+    try {
+      return streaming ? handleStreaming(request, response, route)
+          : handleBuffered(request, response, route);
+    } finally {
+      Metrics.endRequest();
+      recordRequest(route, System.nanoTime() - start, timings);
+    }
+  }
+
+  private Object handleBuffered(Request request, Response response, String route) {
     StringWriter writer = new StringWriter();
     try {
-      doHandle(request, response, writer);
+      runHandler(request, response, writer, route);
     } catch (Exception e) {
       e.printStackTrace();
+      countError(route);
       response.redirect("/internal_error");
+      return writer;
+    }
+    // redirects and 304s leave nothing to compress
+    if (writer.getBuffer().length() > 0 && !response.raw().isCommitted()
+        && gzip && acceptsGzip(request)) {
+      writeGzipped(response.raw(), writer.toString());
+      return "";
     }
     return writer;
   }
 
+  private Object handleStreaming(Request request, Response response, String route) {
+    StreamingResponseWriter writer =
+        new StreamingResponseWriter(response.raw(), gzip && acceptsGzip(request));
+    try {
+      runHandler(request, response, writer, route);
+      writer.finish();
+    } catch (Exception e) {
+      e.printStackTrace();
+      countError(route);
+      if (writer.isCommitted()) {
+        // part of the page is already on the wire, all we can do is stop sending
+        return "";
+      }
+      response.redirect("/internal_error");
+    } finally {
+      writer.release();
+    }
+    // the body has been written already, an empty result keeps spark from writing another one
+    return "";
+  }
+
+  private void runHandler(Request request, Response response, Writer writer, String route)
+      throws Exception {
+    HandlerExecutor.Handler handler = () -> {
+      if (!answeredNotModified(request, response, route)) {
+        doHandle(request, response, writer);
+      }
+    };
+    HandlerExecutor executor = handlerExecutor;
+    if (executor != null && usesMongo()) {
+      executor.execute(handler);
+    } else {
+      handler.handle();
+    }
+  }
+
+  // routes that never talk to mongo skip the handler concurrency limit, the error page in
+  // particular has to render while every permit is taken
+  protected boolean usesMongo() {
+    return true;
+  }
+
+  // cheap lookup of what this request's page would be rendered from, checked before every GET.
+  // routes that return a version get ETag/Last-Modified headers and answer matching
+  // conditional requests with a 304 instead of rendering. null opts out, a route whose version
+  // costs a query can return null for unconditional requests and send the version of what it
+  // rendered itself
+  protected PageVersion version(Request request) {
+    return null;
+  }
+
+  private boolean answeredNotModified(Request request, Response response, String route) {
+    if (!request.requestMethod().equals("GET")) {
+      return false;
+    }
+    PageVersion version = version(request);
+    if (version == null) {
+      return false;
+    }
+    sendVersion(response, version);
+
+    // If-Modified-Since only counts when there is no If-None-Match
+    String ifNoneMatch = request.headers("If-None-Match");
+    boolean notModified = ifNoneMatch != null ? version.matches(ifNoneMatch)
+        : version.notModifiedSince(ifModifiedSince(request));
+    if (notModified) {
+      response.status(HttpServletResponse.SC_NOT_MODIFIED);
+      Metrics.counter("blog_not_modified_total", "GETs answered with a 304 without rendering",
+          "route", route).increment();
+    }
+    return notModified;
+  }
+
+  // the headers a later conditional GET is checked against, sent before the page is written
+  protected static void sendVersion(Response response, PageVersion version) {
+    HttpServletResponse raw = response.raw();
+    raw.setHeader("ETag", version.getEtag());
+    raw.setHeader("Cache-Control", "no-cache");
+    // the welcome header makes the page depend on the session cookie
+    raw.addHeader("Vary", "Cookie");
+    if (version.getLastModifiedMillis() > 0) {
+      raw.setDateHeader("Last-Modified", version.getLastModifiedMillis());
+    }
+  }
+
+  public static boolean isConditional(Request request) {
+    return request.headers("If-None-Match") != null
+        || request.headers("If-Modified-Since") != null;
+  }
+
+  public static long ifModifiedSince(Request request) {
+    try {
+      return request.raw().getDateHeader("If-Modified-Since");
+    } catch (IllegalArgumentException e) {
+      // not a date, same as not sending one
+      return -1;
+    }
+  }
+
+  // gzip listed in Accept-Encoding without q=0
+  public static boolean acceptsGzip(Request request) {
+    String acceptEncoding = request.headers("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String parameter = parts[i].replace(" ", "");
+          if (parameter.equals("q=0") || parameter.startsWith("q=0.") && parameter
+              .substring(4).replace("0", "").isEmpty()) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void writeGzipped(HttpServletResponse response, String page) {
+    if (response.getContentType() == null) {
+      response.setContentType("text/html; charset=utf-8");
+    }
+    response.setHeader("Content-Encoding", "gzip");
+    try {
+      GZIPOutputStream out = new GZIPOutputStream(response.getOutputStream(),
+          StreamingResponseWriter.CHUNK_SIZE);
+      out.write(page.getBytes(StandardCharsets.UTF_8));
+      out.finish();
+    } catch (IOException e) {
+      // the client went away, nothing left to send it
+    }
+  }
+
+  private static void recordRequest(String route, long totalNanos, Metrics.RequestTimings timings) {
+    Metrics.counter("blog_requests_total", "Requests handled per route", "route", route)
+        .increment();
+    Metrics.histogram("blog_request_duration_seconds", "Total time to handle a request",
+        "route", route).recordNanos(totalNanos);
+    Metrics.histogram("blog_request_mongo_seconds", "Time a request spent in DAO calls",
+        "route", route).recordNanos(timings.getMongoNanos());
+    Metrics.histogram("blog_request_template_seconds", "Time a request spent rendering templates",
+        "route", route).recordNanos(timings.getTemplateNanos());
+  }
+
+  private static void countError(String route) {
+    Metrics.counter("blog_request_errors_total", "Requests that failed with an exception",
+        "route", route).increment();
+  }
+
+  // renders this route's template, timed as template time of the current request
+  protected void render(Object model, Writer writer) throws IOException, TemplateException {
+    long start = System.nanoTime();
+    try {
+      template.process(model, writer);
+    } finally {
+      Metrics.recordTemplate(start);
+    }
+  }
+
   protected abstract void doHandle(final Request request, final Response response,
       final Writer writer) throws IOException, TemplateException;
 
@@ -41,8 +265,21 @@ public abstract class FreemarkerBasedRoute extends Route {
   }
 
   public static Configuration createFreemarkerConfiguration() {
+    return createFreemarkerConfiguration(DEFAULT_TEMPLATE_UPDATE_DELAY_SECONDS);
+  }
+
+  // updateDelaySeconds is how long a loaded template is used before its source is checked for
+  // changes again, 0 re-checks on every lookup while editing templates
+  public static Configuration createFreemarkerConfiguration(int updateDelaySeconds) {
     Configuration retVal = new Configuration();
     retVal.setClassForTemplateLoading(FreemarkerBasedRoute.class, "/freemarker");
+    retVal.setObjectWrapper(new BsonObjectWrapper());
+    retVal.setDefaultEncoding("UTF-8");
+    retVal.setTemplateUpdateDelay(updateDelaySeconds);
+    // keep every template parsed, the default soft cache lets the gc drop them under pressure
+    retVal.setCacheStorage(new MruCacheStorage(TEMPLATE_CACHE_SIZE, TEMPLATE_CACHE_SIZE));
+    // there are no localized variants, don't look for entry_template_en_US.ftl first
+    retVal.setLocalizedLookup(false);
     return retVal;
   }
 }
@@ -0,0 +1,50 @@
+package course.configuration;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// caps how many route handlers may run at once. every handler talks to mongo synchronously, so
+// capping concurrent handlers at the connection pool size keeps a burst from piling up in the
+// driver's wait queue. handlers run on the calling jetty thread: spark routes return their
+// result synchronously, so handing one to another thread would only park the jetty thread on it
+public class HandlerExecutor {
+  public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5000;
+
+  private final Semaphore permits;
+  private final int maxConcurrency;
+  private final long acquireTimeoutMillis;
+
+  public HandlerExecutor(int maxConcurrency, long acquireTimeoutMillis) {
+    this.permits = new Semaphore(maxConcurrency, true);
+    this.maxConcurrency = maxConcurrency;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+  }
+
+  public void execute(Handler handler) throws Exception {
+    if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("No handler capacity after " + acquireTimeoutMillis
+          + "ms, " + maxConcurrency + " requests are already talking to mongo");
+    }
+    try {
+      handler.handle();
+    } finally {
+      permits.release();
+    }
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public int getAvailablePermits() {
+    return permits.availablePermits();
+  }
+
+  public long getAcquireTimeoutMillis() {
+    return acquireTimeoutMillis;
+  }
+
+  public interface Handler {
+    void handle() throws Exception;
+  }
+}
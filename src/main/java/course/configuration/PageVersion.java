@@ -0,0 +1,40 @@
+package course.configuration;
+
+// identifies the data a page is rendered from, so a conditional GET can be answered without
+// rendering it. the tag has to change whenever the page would. last modified is only sent for
+// pages that look the same to everyone, 0 leaves it out
+public final class PageVersion {
+  private final String etag;
+  private final long lastModifiedMillis;
+
+  public PageVersion(String tag, long lastModifiedMillis) {
+    // weak, the gzipped and the plain page share the tag
+    this.etag = "W/\"" + tag + "\"";
+    this.lastModifiedMillis = lastModifiedMillis;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public long getLastModifiedMillis() {
+    return lastModifiedMillis;
+  }
+
+  // If-None-Match holds a list of tags or *, compared weakly
+  public boolean matches(String ifNoneMatch) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || candidate.equals(etag) || ("W/" + candidate).equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // http dates only have second precision
+  public boolean notModifiedSince(long ifModifiedSinceMillis) {
+    return lastModifiedMillis > 0 && ifModifiedSinceMillis >= 0
+        && lastModifiedMillis / 1000 <= ifModifiedSinceMillis / 1000;
+  }
+}
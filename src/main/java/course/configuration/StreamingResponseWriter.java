@@ -0,0 +1,120 @@
+package course.configuration;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+// writes a rendered page straight to the servlet output stream in fixed size chunks. the
+// response is only committed once the first chunk is full or the page is flushed, so a route
+// can still redirect as long as it hasn't rendered anything
+class StreamingResponseWriter extends Writer {
+  static final int CHUNK_SIZE = 8192;
+
+  // chunk buffers are reused across requests. a pool rather than a thread local, so idle jetty
+  // threads don't each keep one
+  private static final BlockingQueue<char[]> BUFFERS = new ArrayBlockingQueue<>(256);
+
+  private final HttpServletResponse response;
+  private final boolean gzip;
+  private char[] buffer = borrowBuffer();
+  private int count;
+  private Writer out;
+  private GZIPOutputStream gzipStream;
+
+  StreamingResponseWriter(HttpServletResponse response, boolean gzip) {
+    this.response = response;
+    this.gzip = gzip;
+  }
+
+  @Override
+  public void write(char[] chars, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (count == buffer.length) {
+        writeChunk();
+      }
+      int copied = Math.min(length, buffer.length - count);
+      System.arraycopy(chars, offset, buffer, count, copied);
+      count += copied;
+      offset += copied;
+      length -= copied;
+    }
+  }
+
+  @Override
+  public void write(String string, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (count == buffer.length) {
+        writeChunk();
+      }
+      int copied = Math.min(length, buffer.length - count);
+      string.getChars(offset, offset + copied, buffer, count);
+      count += copied;
+      offset += copied;
+      length -= copied;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (count > 0) {
+      writeChunk();
+    }
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  // sends the rest of the page, including the gzip trailer
+  void finish() throws IOException {
+    flush();
+    if (gzipStream != null) {
+      gzipStream.finish();
+    }
+  }
+
+  // true once part of the page has been sent and the response can no longer be redirected
+  boolean isCommitted() {
+    return out != null;
+  }
+
+  // drops whatever was rendered but not yet sent and hands the buffer back for the next request
+  void release() {
+    count = 0;
+    if (buffer != null) {
+      BUFFERS.offer(buffer);
+      buffer = null;
+    }
+  }
+
+  private static char[] borrowBuffer() {
+    char[] buffer = BUFFERS.poll();
+    return buffer != null ? buffer : new char[CHUNK_SIZE];
+  }
+
+  private void writeChunk() throws IOException {
+    if (out == null) {
+      if (response.getContentType() == null) {
+        response.setContentType("text/html; charset=utf-8");
+      }
+      if (gzip) {
+        response.setHeader("Content-Encoding", "gzip");
+        gzipStream = new GZIPOutputStream(response.getOutputStream(), CHUNK_SIZE);
+        out = new OutputStreamWriter(gzipStream, StandardCharsets.UTF_8);
+      } else {
+        out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+      }
+    }
+    out.write(buffer, 0, count);
+    count = 0;
+  }
+}
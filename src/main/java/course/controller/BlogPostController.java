@@ -1,60 +1,102 @@
 package course.controller;
 
+import course.cache.PageCache;
 import course.configuration.FreemarkerBasedRoute;
+import course.configuration.PageVersion;
 import course.dao.BlogPostDAO;
-import course.dao.SessionDAO;
+import course.dao.PageCursor;
+import course.dao.SessionStore;
+import course.metrics.Metrics;
 import course.util.SessionUtil;
 import course.util.TagsUtil;
+import course.util.TextUtil;
+import course.util.UrlUtil;
 import freemarker.template.Configuration;
-import freemarker.template.SimpleHash;
+import freemarker.template.Template;
 import freemarker.template.TemplateException;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.bson.Document;
 import spark.Request;
 import spark.Response;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import static spark.Spark.get;
 import static spark.Spark.post;
 
 public class BlogPostController {
+  static final int PAGE_SIZE = 10;
+  // relevance ranked results can't use a keyset cursor, so deep search pages cost a skip
+  private static final int MAX_SEARCH_PAGE = 100;
+  // keeps the comment offset from overflowing into a negative $slice, which counts from the end
+  private static final int MAX_COMMENT_PAGE = 10_000;
+  private static final String USERNAME_ATTRIBUTE = "blog.username";
 
   private final BlogPostDAO blogPostDAO;
-  private final SessionDAO sessionDAO;
+  private final SessionStore sessionStore;
+  private final PageCache pageCache;
   private final Configuration cfg;
+  private final Template postListTemplate;
 
-  public BlogPostController(BlogPostDAO blogPostDAO, Configuration cfg, SessionDAO sessionDAO)
-      throws IOException {
+  public BlogPostController(BlogPostDAO blogPostDAO, Configuration cfg, SessionStore sessionStore,
+      PageCache pageCache) throws IOException {
     this.blogPostDAO = blogPostDAO;
     this.cfg = cfg;
-    this.sessionDAO = sessionDAO;
+    this.sessionStore = sessionStore;
+    this.pageCache = pageCache;
+    this.postListTemplate = cfg.getTemplate("post_list.ftl");
     initializeRoutes();
   }
 
   private void initializeRoutes() throws IOException {
     // this is the blog home page
     get(new FreemarkerBasedRoute("/", "blog_template.ftl", cfg) {
+      @Override
+      protected PageVersion version(Request request) {
+        return listVersion(request);
+      }
+
       @Override
       public void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
 
-        List<Document> posts = blogPostDAO.findByDateDescending(10);
-        SimpleHash root = new SimpleHash();
+        // the session lookup runs while the post list is fetched or taken from the cache
+        CompletableFuture<String> username = username(request);
+        Map<String, Object> root = new HashMap<>();
+        PageCursor before = PageCursor.parse(request.queryParams("before"));
 
-        root.put("myposts", posts);
-        setUsernameParameter(request, root);
+        root.put("postsHtml", renderPostList(PageCache.homeKey(before), "/",
+            () -> blogPostDAO.findByDateDescending(PAGE_SIZE + 1, before)));
+        setUsernameParameter(username.join(), root);
 
-        this.getTemplate().process(root, writer);
+        render(root, writer);
       }
     });
 
     // used to display actual blog post detail page
     get(new FreemarkerBasedRoute("/post/:permalink", "entry_template.ftl", cfg) {
+      @Override
+      protected PageVersion version(Request request) {
+        // only a conditional GET is worth a query of its own, the others get the version of the
+        // post they are rendered from
+        if (!isConditional(request)) {
+          return null;
+        }
+        return postVersion(blogPostDAO.findVersion(request.params(":permalink")),
+            username(request).join());
+      }
+
       @Override
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
@@ -62,23 +104,42 @@ public class BlogPostController {
 
         System.out.println("/post: get " + permalink);
 
-        Document post = blogPostDAO.findByPermalink(permalink);
+        int commentPage = Math.min(parsePage(request.queryParams("comments")), MAX_COMMENT_PAGE);
+        int commentOffset = (commentPage - 1) * BlogPostDAO.COMMENTS_PAGE_SIZE;
+
+        // look up the post and the session at the same time, render once both are back
+        CompletableFuture<Document> postLookup = blogPostDAO.findByPermalinkAsync(permalink,
+            commentOffset, BlogPostDAO.COMMENTS_PAGE_SIZE);
+        CompletableFuture<String> username = username(request);
+
+        Document post = postLookup.join();
         if (post == null) {
           response.redirect("/post_not_found");
         } else {
+          PageVersion version = postVersion(post, username.join());
+          if (version != null && !isConditional(request)) {
+            sendVersion(response, version);
+          }
+
           // empty comment to hold new comment in form at bottom of blog entry detail page
-          SimpleHash newComment = new SimpleHash();
+          Map<String, Object> newComment = new HashMap<>();
           newComment.put("name", "");
           newComment.put("email", "");
           newComment.put("body", "");
 
-          SimpleHash root = new SimpleHash();
+          Map<String, Object> root = new HashMap<>();
 
           root.put("post", post);
           root.put("comment", newComment);
-          setUsernameParameter(request, root);
-
-          this.getTemplate().process(root, writer);
+          if (commentPage > 1) {
+            root.put("previousComments", "/post/" + permalink + "?comments=" + (commentPage - 1));
+          }
+          if (commentOffset + BlogPostDAO.COMMENTS_PAGE_SIZE < post.getInteger("comment_count")) {
+            root.put("nextComments", "/post/" + permalink + "?comments=" + (commentPage + 1));
+          }
+          setUsernameParameter(username.join(), root);
+
+          render(root, writer);
         }
       }
     });
@@ -89,9 +150,9 @@ public class BlogPostController {
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
 
-        SimpleHash root = new SimpleHash();
+        Map<String, Object> root = new HashMap<>();
         if (setUsernameParameter(request, root)) {
-          this.getTemplate().process(root, writer);
+          render(root, writer);
         } else {
           response.redirect("/login");
         }
@@ -108,7 +169,7 @@ public class BlogPostController {
         String post = StringEscapeUtils.escapeHtml4(request.queryParams("body"));
         String tags = StringEscapeUtils.escapeHtml4(request.queryParams("tags"));
 
-        String username = sessionDAO.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
+        String username = sessionStore.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
 
         if (username == null) {
           response.redirect("/login");    // only logged in users can post to blog
@@ -120,13 +181,13 @@ public class BlogPostController {
           root.put("username", username);
           root.put("tags", tags);
           root.put("body", post);
-          this.getTemplate().process(root, writer);
+          render(root, writer);
         } else {
           // extract tags
           ArrayList<String> tagsArray = TagsUtil.extractTags(tags);
 
           // substitute some <p> for the paragraph breaks
-          post = post.replaceAll("\\r?\\n", "<p>");
+          post = TextUtil.paragraphs(post);
 
           String permalink = blogPostDAO.addPost(title, post, tagsArray, username);
 
@@ -146,15 +207,16 @@ public class BlogPostController {
         String body = StringEscapeUtils.escapeHtml4(request.queryParams("commentBody"));
         String permalink = request.queryParams("permalink");
 
-        Document post = blogPostDAO.findByPermalink(permalink);
-        if (post == null) {
+        // the post itself is only needed to re-render the form
+        if (!blogPostDAO.postExists(permalink)) {
           response.redirect("/post_not_found");
         }
         // check that comment is good
         else if (name.equals("") || body.equals("")) {
+          Document post = blogPostDAO.findByPermalink(permalink);
           // bounce this back to the user for correction
-          SimpleHash root = new SimpleHash();
-          SimpleHash comment = new SimpleHash();
+          Map<String, Object> root = new HashMap<>();
+          Map<String, Object> comment = new HashMap<>();
 
           comment.put("name", name);
           comment.put("email", email);
@@ -163,7 +225,7 @@ public class BlogPostController {
           root.put("post", post);
           root.put("errors", "Post must contain your name and an actual comment");
 
-          this.getTemplate().process(root, writer);
+          render(root, writer);
         } else {
           blogPostDAO.addPostComment(name, email, body, permalink);
           response.redirect("/post/" + permalink);
@@ -174,22 +236,62 @@ public class BlogPostController {
 
     // Show the posts filed under a certain tag
     get(new FreemarkerBasedRoute("/tag/:thetag", "blog_template.ftl", cfg) {
+      @Override
+      protected PageVersion version(Request request) {
+        return listVersion(request);
+      }
+
       @Override
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
 
-        String username = sessionDAO.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
-        SimpleHash root = new SimpleHash();
+        CompletableFuture<String> username = username(request);
+        Map<String, Object> root = new HashMap<>();
 
-        String tag = StringEscapeUtils.escapeHtml4(request.params(":thetag"));
-        List<Document> posts = blogPostDAO.findByTagDateDescending(tag);
+        String tag = tagParam(request);
+        PageCursor before = PageCursor.parse(request.queryParams("before"));
 
-        root.put("myposts", posts);
-        if (username != null) {
-          root.put("username", username);
+        root.put("postsHtml", renderPostList(PageCache.tagKey(tag, before),
+            "/tag/" + UrlUtil.encodeSegment(tag),
+            () -> blogPostDAO.findByTagDateDescending(tag, PAGE_SIZE + 1, before)));
+        setUsernameParameter(username.join(), root);
+
+        render(root, writer);
+      }
+    });
+
+    // posts matching a full text query, most relevant first
+    get(new FreemarkerBasedRoute("/search", "blog_template.ftl", cfg) {
+      @Override
+      protected void doHandle(Request request, Response response, Writer writer)
+          throws IOException, TemplateException {
+        String query = request.queryParams("q");
+        if (query == null || query.trim().isEmpty()) {
+          response.redirect("/");
+          return;
         }
 
-        this.getTemplate().process(root, writer);
+        CompletableFuture<String> username =
+            sessionStore.findUserNameBySessionIdAsync(SessionUtil.getSessionCookie(request));
+        Map<String, Object> root = new HashMap<>();
+
+        int page = Math.min(parsePage(request.queryParams("page")), MAX_SEARCH_PAGE);
+        List<Document> posts = blogPostDAO.search(query, (page - 1) * PAGE_SIZE, PAGE_SIZE + 1);
+        String nextPage = null;
+        if (posts.size() > PAGE_SIZE) {
+          posts = posts.subList(0, PAGE_SIZE);
+          if (page < MAX_SEARCH_PAGE) {
+            nextPage = "/search?q=" + URLEncoder.encode(query, "UTF-8")
+                + "&amp;page=" + (page + 1);
+          }
+        }
+
+        root.put("query", StringEscapeUtils.escapeHtml4(query));
+        root.put("postsHtml", posts.isEmpty() ? "No posts match your search."
+            : renderPosts(posts, nextPage, "More results"));
+        setUsernameParameter(username.join(), root);
+
+        render(root, writer);
       }
     });
 
@@ -201,24 +303,23 @@ public class BlogPostController {
 
         String permalink = request.queryParams("permalink");
         String commentOrdinalStr = request.queryParams("comment_ordinal");
+        // comments that have an _id are liked by it, the ordinal is for older ones
+        String commentId = request.queryParams("comment_id");
 
-
-        // look up the post in question
-
-        int ordinal = Integer.parseInt(commentOrdinalStr);
-
-        String username = sessionDAO.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
+        String username = sessionStore.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
         if(username == null){
           response.redirect("/");
           return;
         }
-        Document post = blogPostDAO.findByPermalink(permalink);
-
         //  if post not found, redirect to post not found error
-        if (post == null) {
+        if (!blogPostDAO.postExists(permalink)) {
           response.redirect("/post_not_found");
         } else {
-          blogPostDAO.likePost(permalink, ordinal);
+          if (commentId != null && !commentId.isEmpty()) {
+            blogPostDAO.likeComment(permalink, commentId);
+          } else {
+            blogPostDAO.likePost(permalink, Integer.parseInt(commentOrdinalStr));
+          }
 
           response.redirect("/post/" + permalink);
         }
@@ -227,16 +328,126 @@ public class BlogPostController {
 
     // tells the user that the URL is dead
     get(new FreemarkerBasedRoute("/post_not_found", "post_not_found.ftl", cfg) {
+      @Override
+      protected boolean usesMongo() {
+        return false;
+      }
+
       @Override protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
-        SimpleHash root = new SimpleHash();
-        this.getTemplate().process(root, writer);
+        Map<String, Object> root = new HashMap<>();
+        render(root, writer);
       }
     });
   }
 
-  private boolean setUsernameParameter(Request request, SimpleHash root){
-    String username = sessionDAO.findUserNameBySessionId(SessionUtil.getSessionCookie(request));
+  // the post list is shared by every visitor, only the welcome header is rendered per request.
+  // posts holds up to PAGE_SIZE + 1 entries, the extra one only tells us there is an older page
+  private String renderPostList(String key, String pageUrl, Supplier<List<Document>> posts)
+      throws IOException, TemplateException {
+    String html = pageCache.get(key);
+    if (html == null) {
+      long generation = pageCache.generation();
+      List<Document> page = posts.get();
+      String nextPage = null;
+      if (page.size() > PAGE_SIZE) {
+        page = page.subList(0, PAGE_SIZE);
+        nextPage = pageUrl + "?before=" + PageCursor.after(page.get(PAGE_SIZE - 1));
+      }
+      html = renderPosts(page, nextPage, "Older posts");
+      pageCache.put(key, html, generation);
+    }
+    return html;
+  }
+
+  private String renderPosts(List<Document> posts, String nextPage, String nextPageLabel)
+      throws IOException, TemplateException {
+    Map<String, Object> root = new HashMap<>();
+    root.put("myposts", posts);
+    if (nextPage != null) {
+      root.put("nextPage", nextPage);
+      root.put("nextPageLabel", nextPageLabel);
+    }
+
+    StringWriter writer = new StringWriter();
+    long start = System.nanoTime();
+    postListTemplate.process(root, writer);
+    Metrics.recordTemplate(start);
+    return writer.toString();
+  }
+
+  // the session lookup of this request, started by whichever of the version check and the
+  // handler needs it first and shared with the other
+  private CompletableFuture<String> username(Request request) {
+    @SuppressWarnings("unchecked") // only ever set below
+    CompletableFuture<String> username =
+        (CompletableFuture<String>) request.attribute(USERNAME_ATTRIBUTE);
+    if (username == null) {
+      username = sessionStore.findUserNameBySessionIdAsync(SessionUtil.getSessionCookie(request));
+      request.attribute(USERNAME_ATTRIBUTE, username);
+    }
+    return username;
+  }
+
+  // the home and tag pages change with the page cache's generation, which every write that
+  // shows on a list bumps. any write bumps every list's tag, which costs an occasional
+  // needless render but no query per request
+  private PageVersion listVersion(Request request) {
+    long changedAt = pageCache.changedAt();
+    return pageVersion(pageCache.versionTag(), changedAt, username(request).join());
+  }
+
+  // version of the post page, from a document holding the post's version fields. null if there
+  // is no such post
+  private static PageVersion postVersion(Document version, String user) {
+    if (version == null) {
+      return null;
+    }
+    Date modified = version.getDate("last_modified");
+    if (modified == null) {
+      modified = version.getDate("date");
+    }
+    if (modified == null) {
+      return null;
+    }
+    Object number = version.get("version");
+    return pageVersion(version.get("_id") + "-" + (number == null ? 0 : number),
+        modified.getTime(), user);
+  }
+
+  // the pages only differ per user in the welcome header, so the tag includes a digest of who is
+  // asking, which unlike a hash code doesn't let two users share a tag. signed in users get no
+  // last modified date since it couldn't tell their page from the anonymous one
+  private static PageVersion pageVersion(String tag, long modifiedMillis, String user) {
+    if (user == null) {
+      return new PageVersion(tag + "-" + modifiedMillis, modifiedMillis);
+    }
+    return new PageVersion(tag + "-" + modifiedMillis + "-" + DigestUtils.sha1Hex(user), 0);
+  }
+
+  // the tag of a /tag/:thetag route, spelled the way it is stored on the posts
+  static String tagParam(Request request) {
+    return StringEscapeUtils.escapeHtml4(UrlUtil.decodeSegment(request.params(":thetag")));
+  }
+
+  // 1-based page number from a query parameter, anything unparseable is the first page
+  private static int parsePage(String page) {
+    if (page == null) {
+      return 1;
+    }
+    try {
+      return Math.max(1, Integer.parseInt(page));
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  private boolean setUsernameParameter(Request request, Map<String, Object> root){
+    return setUsernameParameter(
+        sessionStore.findUserNameBySessionId(SessionUtil.getSessionCookie(request)), root);
+  }
+
+  private static boolean setUsernameParameter(String username, Map<String, Object> root) {
     if (username != null) {
       root.put("username", username);
       return true;
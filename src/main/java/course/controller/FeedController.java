@@ -0,0 +1,166 @@
+package course.controller;
+
+import course.cache.FeedCache;
+import course.configuration.FreemarkerBasedRoute;
+import course.configuration.PageVersion;
+import course.dao.BlogPostDAO;
+import course.metrics.Metrics;
+import course.util.UrlUtil;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.Document;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static spark.Spark.get;
+
+// atom feeds of the newest posts, for the whole blog and per tag. the serialized feed is kept
+// in the FeedCache until a post is added to it, so a poll is a map lookup and a byte copy, or
+// a 304 when the reader sends back the etag
+public class FeedController {
+  private static final int FEED_SIZE = 20;
+
+  private final BlogPostDAO blogPostDAO;
+  private final FeedCache feedCache;
+  private final Template feedTemplate;
+  // absolute urls for entry ids and links, feed readers don't resolve relative ones reliably
+  private final String baseUrl;
+
+  public FeedController(BlogPostDAO blogPostDAO, Configuration cfg, FeedCache feedCache,
+      String baseUrl) throws IOException {
+    this.blogPostDAO = blogPostDAO;
+    this.feedCache = feedCache;
+    this.feedTemplate = cfg.getTemplate("atom.ftl");
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    initializeRoutes();
+  }
+
+  private void initializeRoutes() {
+    get(new Route("/feed.xml") {
+      @Override
+      public Object handle(Request request, Response response) {
+        return serve(request, response, "GET /feed.xml", null);
+      }
+    });
+
+    get(new Route("/tag/:thetag/feed.xml") {
+      @Override
+      public Object handle(Request request, Response response) {
+        String tag = BlogPostController.tagParam(request);
+        return serve(request, response, "GET /tag/:thetag/feed.xml", tag);
+      }
+    });
+  }
+
+  private Object serve(Request request, Response response, String route, String tag) {
+    long start = System.nanoTime();
+    try {
+      FeedCache.Feed feed = feedCache.get(tag);
+      if (feed == null) {
+        long generation = feedCache.generation();
+        feed = render(tag);
+        // a tag no post has gets an empty feed that isn't kept, or requests for made up tags
+        // would push the real feeds out of the cache
+        if (tag == null || feed.getEntries() > 0) {
+          feedCache.put(tag, feed, generation);
+        }
+      }
+
+      HttpServletResponse raw = response.raw();
+      PageVersion version = feed.getVersion();
+      raw.setContentType("application/atom+xml; charset=utf-8");
+      raw.setHeader("ETag", version.getEtag());
+      raw.setHeader("Cache-Control", "no-cache");
+      raw.addHeader("Vary", "Accept-Encoding");
+      if (version.getLastModifiedMillis() > 0) {
+        raw.setDateHeader("Last-Modified", version.getLastModifiedMillis());
+      }
+      String ifNoneMatch = request.headers("If-None-Match");
+      if (ifNoneMatch != null ? version.matches(ifNoneMatch)
+          : version.notModifiedSince(FreemarkerBasedRoute.ifModifiedSince(request))) {
+        response.status(HttpServletResponse.SC_NOT_MODIFIED);
+        Metrics.counter("blog_not_modified_total", "GETs answered with a 304 without rendering",
+            "route", route).increment();
+        return "";
+      }
+
+      boolean gzip = FreemarkerBasedRoute.isGzip() && FreemarkerBasedRoute.acceptsGzip(request);
+      if (gzip) {
+        raw.setHeader("Content-Encoding", "gzip");
+      }
+      raw.setContentLength(feed.length(gzip));
+      feed.writeTo(raw.getOutputStream(), gzip);
+      return "";
+    } catch (IOException | TemplateException e) {
+      e.printStackTrace();
+      Metrics.counter("blog_request_errors_total", "Requests that failed with an exception",
+          "route", route).increment();
+      response.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return "";
+    } finally {
+      Metrics.counter("blog_requests_total", "Requests handled per route", "route", route)
+          .increment();
+      Metrics.histogram("blog_request_duration_seconds", "Total time to handle a request",
+          "route", route).recordNanos(System.nanoTime() - start);
+    }
+  }
+
+  private FeedCache.Feed render(String tag) throws IOException, TemplateException {
+    List<Document> posts = tag == null ? blogPostDAO.findByDateDescending(FEED_SIZE)
+        : blogPostDAO.findByTagDateDescending(tag, FEED_SIZE, null);
+
+    List<Map<String, Object>> entries = new ArrayList<>(posts.size());
+    for (Document post : posts) {
+      Map<String, Object> entry = new HashMap<>();
+      entry.put("title", post.getString("title"));
+      entry.put("url", baseUrl + "/post/" + UrlUtil.encodeSegment(post.getString("permalink")));
+      entry.put("published", timestamp(post.getDate("date")));
+      entry.put("author", post.getString("author"));
+      Object tags = post.get("tags");
+      entry.put("tags", tags instanceof List ? tags : Collections.emptyList());
+      entry.put("body", post.getString("body") == null ? "" : post.getString("body"));
+      entries.add(entry);
+    }
+
+    String pageUrl = tag == null ? baseUrl + "/"
+        : baseUrl + "/tag/" + UrlUtil.encodeSegment(tag);
+    // the newest post's date keeps the bytes, and so the etag, the same on every node
+    Date updated = posts.isEmpty() ? null : posts.get(0).getDate("date");
+    Map<String, Object> root = new HashMap<>();
+    root.put("title", tag == null ? "My Blog" : "My Blog: " + tag);
+    root.put("feedUrl", tag == null ? baseUrl + "/feed.xml" : pageUrl + "/feed.xml");
+    root.put("pageUrl", pageUrl);
+    root.put("updated", timestamp(updated));
+    root.put("entries", entries);
+
+    StringWriter writer = new StringWriter();
+    long start = System.nanoTime();
+    try {
+      feedTemplate.process(root, writer);
+    } finally {
+      Metrics.recordTemplate(start);
+    }
+    byte[] xml = writer.toString().getBytes(StandardCharsets.UTF_8);
+    return new FeedCache.Feed(xml, entries.size(), new PageVersion(DigestUtils.sha1Hex(xml),
+        updated == null ? 0 : updated.getTime()));
+  }
+
+  private static String timestamp(Date date) {
+    return DateTimeFormatter.ISO_INSTANT.format((date == null ? new Date(0) : date).toInstant());
+  }
+}
@@ -0,0 +1,26 @@
+package course.controller;
+
+import course.metrics.Metrics;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import static spark.Spark.get;
+
+public class MetricsController {
+
+  public MetricsController() {
+    initializeRoutes();
+  }
+
+  private void initializeRoutes() {
+    // prometheus scrape endpoint
+    get(new Route("/metrics") {
+      @Override
+      public Object handle(Request request, Response response) {
+        response.type("text/plain; version=0.0.4; charset=utf-8");
+        return Metrics.scrape();
+      }
+    });
+  }
+}
@@ -0,0 +1,384 @@
+package course.controller;
+
+import course.dao.BlogPostDAO;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+// renders the blog to a directory tree a static file server can serve on its own: every post,
+// the paginated home feed and every tag page, under the urls the blog uses (post/<permalink>/,
+// tag/<tag>/, page/<n>/ for older posts). each export is written to a new directory under
+// snapshots/ and published by atomically repointing the current symlink, so a half written
+// export is never served. an incremental export renders only the posts changed since the
+// previous snapshot and hard links the others' pages from it
+public class StaticSiteExporter {
+  private static final String CURRENT = "current";
+  private static final String SNAPSHOTS = "snapshots";
+  // a post changed on an app node whose clock is behind this one's still counts as changed
+  private static final long CHANGE_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final BlogPostDAO blogPostDAO;
+  private final Template entryTemplate;
+  private final Template blogTemplate;
+  private final Template postListTemplate;
+  private final int threads;
+
+  public StaticSiteExporter(BlogPostDAO blogPostDAO, Configuration cfg, int threads)
+      throws IOException {
+    this.blogPostDAO = blogPostDAO;
+    this.entryTemplate = cfg.getTemplate("entry_template.ftl");
+    this.blogTemplate = cfg.getTemplate("blog_template.ftl");
+    this.postListTemplate = cfg.getTemplate("post_list.ftl");
+    this.threads = threads;
+  }
+
+  // serve root/current. returns the snapshot that was published
+  public Path export(Path root, boolean incremental) throws IOException {
+    // snapshots are compared as paths when old ones are removed
+    root = root.toAbsolutePath().normalize();
+    long start = System.nanoTime();
+    long startedAt = System.currentTimeMillis();
+    Path snapshots = Files.createDirectories(root.resolve(SNAPSHOTS));
+    Path published = publishedSnapshot(root);
+    Path base = incremental ? published : null;
+    long changedSince = base == null ? 0 : readStartedAt(base) - CHANGE_OVERLAP_MILLIS;
+    Path snapshot = Files.createDirectory(snapshots.resolve(String.valueOf(startedAt)));
+
+    Run run = new Run(snapshot, base, changedSince);
+    boolean done = false;
+    try {
+      blogPostDAO.forEachByDateDescending(run::add);
+      run.finish();
+      writeManifest(snapshot, startedAt);
+      publish(root, snapshot);
+      done = true;
+    } finally {
+      run.executor.shutdownNow();
+      if (!done) {
+        deleteTree(snapshot);
+      }
+    }
+    // the previously published snapshot may still have requests reading from it
+    removeSnapshotsExcept(snapshots, snapshot, published);
+
+    System.out.println("Exported " + run.posts + " posts (" + run.rendered + " rendered, "
+        + run.linked + " unchanged), " + run.home.page + " home pages and " + run.tags.size()
+        + " tags to " + snapshot + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms"
+        + (run.skipped.get() > 0 ? ", skipped " + run.skipped + " posts or tags that can't be "
+        + "a directory name" : ""));
+    return snapshot;
+  }
+
+  // one export: walks the posts once, newest first, handing pages to the render threads
+  private final class Run {
+    private final Path snapshot;
+    private final Path base;
+    private final long changedSince;
+    private final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    // keeps the cursor from running far ahead of the renderers
+    private final Semaphore inFlight = new Semaphore(threads * 4);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final ListPages home;
+    private final Map<String, ListPages> tags = new HashMap<>();
+    private int posts;
+    private int rendered;
+    private int linked;
+
+    private Run(Path snapshot, Path base, long changedSince) {
+      this.snapshot = snapshot;
+      this.base = base;
+      this.changedSince = changedSince;
+      this.home = new ListPages("", snapshot);
+    }
+
+    private void add(Document post) {
+      posts++;
+      home.add(post);
+      @SuppressWarnings("unchecked") // written as a list of strings by addPost and the importer
+      List<String> postTags = (List<String>) post.get("tags");
+      if (postTags != null) {
+        for (String tag : postTags) {
+          if (!isSafeName(tag)) {
+            skipped.incrementAndGet();
+            continue;
+          }
+          tags.computeIfAbsent(tag,
+              key -> new ListPages("/tag/" + key, snapshot.resolve("tag").resolve(key))).add(post);
+        }
+      }
+      exportPost(post);
+    }
+
+    private void exportPost(Document post) {
+      String permalink = post.getString("permalink");
+      if (!isSafeName(permalink)) {
+        skipped.incrementAndGet();
+        return;
+      }
+      Path dir = snapshot.resolve("post").resolve(permalink);
+      Date modified = post.getDate("last_modified");
+      if (modified == null) {
+        modified = post.getDate("date");
+      }
+      if (base != null && modified != null && modified.getTime() < changedSince) {
+        Path previous = base.resolve("post").resolve(permalink);
+        if (Files.isDirectory(previous)) {
+          linked++;
+          submit(() -> linkTree(previous, dir));
+          return;
+        }
+      }
+      rendered++;
+      submit(() -> renderPost(permalink, dir));
+    }
+
+    private void finish() throws IOException {
+      home.finish();
+      for (ListPages pages : tags.values()) {
+        pages.finish();
+      }
+      executor.shutdown();
+      try {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          System.out.println("Still rendering...");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while rendering", e);
+      }
+      if (failure.get() != null) {
+        throw new IOException("Static export failed", failure.get());
+      }
+    }
+
+    private void submit(Task task) {
+      if (failure.get() != null) {
+        return;
+      }
+      inFlight.acquireUninterruptibly();
+      executor.execute(() -> {
+        try {
+          task.run();
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          inFlight.release();
+        }
+      });
+    }
+
+    // the home feed or a tag's posts, paged the same way as the blog pages
+    private final class ListPages {
+      private final String url;
+      private final Path dir;
+      private List<Document> current = new ArrayList<>();
+      private int page = 1;
+
+      private ListPages(String url, Path dir) {
+        this.url = url;
+        this.dir = dir;
+      }
+
+      private void add(Document post) {
+        if (current.size() == BlogPostController.PAGE_SIZE) {
+          submitPage(url + "/page/" + (page + 1) + "/");
+          current = new ArrayList<>();
+          page++;
+        }
+        current.add(post);
+      }
+
+      private void finish() {
+        submitPage(null);
+      }
+
+      private void submitPage(String nextPage) {
+        List<Document> pagePosts = current;
+        Path file = (page == 1 ? dir : dir.resolve("page").resolve(String.valueOf(page)))
+            .resolve("index.html");
+        submit(() -> renderList(pagePosts, nextPage, file));
+      }
+    }
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  // page 1 of the comments at post/<permalink>/, the others at post/<permalink>/comments/<n>/
+  private void renderPost(String permalink, Path dir) throws IOException, TemplateException {
+    int pageSize = BlogPostDAO.COMMENTS_PAGE_SIZE;
+    for (int page = 1; ; page++) {
+      int offset = (page - 1) * pageSize;
+      Document post = blogPostDAO.findByPermalink(permalink, offset, pageSize);
+      if (post == null) {
+        return;
+      }
+      Map<String, Object> comment = new HashMap<>();
+      comment.put("name", "");
+      comment.put("email", "");
+      comment.put("body", "");
+
+      Map<String, Object> root = new HashMap<>();
+      root.put("post", post);
+      root.put("comment", comment);
+      String url = "/post/" + permalink;
+      if (page > 1) {
+        root.put("previousComments", page == 2 ? url : url + "/comments/" + (page - 1) + "/");
+      }
+      boolean more = offset + pageSize < post.getInteger("comment_count");
+      if (more) {
+        root.put("nextComments", url + "/comments/" + (page + 1) + "/");
+      }
+      Path file = (page == 1 ? dir : dir.resolve("comments").resolve(String.valueOf(page)))
+          .resolve("index.html");
+      write(entryTemplate, root, file);
+      if (!more) {
+        return;
+      }
+    }
+  }
+
+  private void renderList(List<Document> posts, String nextPage, Path file)
+      throws IOException, TemplateException {
+    Map<String, Object> list = new HashMap<>();
+    list.put("myposts", posts);
+    if (nextPage != null) {
+      list.put("nextPage", nextPage);
+      list.put("nextPageLabel", "Older posts");
+    }
+    StringWriter postsHtml = new StringWriter();
+    postListTemplate.process(list, postsHtml);
+
+    Map<String, Object> root = new HashMap<>();
+    root.put("postsHtml", postsHtml.toString());
+    write(blogTemplate, root, file);
+  }
+
+  private static void write(Template template, Object model, Path file)
+      throws IOException, TemplateException {
+    Files.createDirectories(file.getParent());
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      template.process(model, writer);
+    }
+  }
+
+  // the unchanged pages of a post share their files with the previous snapshot
+  private static void linkTree(Path from, Path to) throws IOException {
+    try (Stream<Path> paths = Files.walk(from)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        Path target = to.resolve(from.relativize(path).toString());
+        if (Files.isDirectory(path)) {
+          Files.createDirectories(target);
+        } else {
+          try {
+            Files.createLink(target, path);
+          } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(path, target);
+          }
+        }
+      }
+    }
+  }
+
+  // permalinks and tags become directory names
+  private static boolean isSafeName(String name) {
+    return name != null && !name.isEmpty() && !name.equals(".") && !name.equals("..")
+        && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+  }
+
+  // the snapshot current points to, null before the first export
+  private static Path publishedSnapshot(Path root) throws IOException {
+    Path current = root.resolve(CURRENT);
+    if (!Files.isSymbolicLink(current)) {
+      return null;
+    }
+    Path snapshot = root.resolve(Files.readSymbolicLink(current)).normalize();
+    return Files.isRegularFile(manifest(snapshot)) ? snapshot : null;
+  }
+
+  // kept next to the snapshot rather than in it, so it isn't served
+  private static Path manifest(Path snapshot) {
+    return snapshot.resolveSibling(snapshot.getFileName() + ".properties");
+  }
+
+  private static void writeManifest(Path snapshot, long startedAt) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("started", String.valueOf(startedAt));
+    try (Writer writer = Files.newBufferedWriter(manifest(snapshot), StandardCharsets.UTF_8)) {
+      properties.store(writer, "static export");
+    }
+  }
+
+  private static long readStartedAt(Path snapshot) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(manifest(snapshot),
+        StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    return Long.parseLong(properties.getProperty("started"));
+  }
+
+  // a new symlink renamed over the old one, so current always points at a complete snapshot
+  private static void publish(Path root, Path snapshot) throws IOException {
+    Path next = root.resolve(CURRENT + ".next");
+    Files.deleteIfExists(next);
+    Files.createSymbolicLink(next, root.relativize(snapshot));
+    Files.move(next, root.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // also cleans up exports that died before they were published
+  private static void removeSnapshotsExcept(Path snapshots, Path keep, Path alsoKeep)
+      throws IOException {
+    List<Path> stale = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(snapshots)) {
+      for (Path entry : entries) {
+        if (Files.isDirectory(entry) && !entry.equals(keep) && !entry.equals(alsoKeep)) {
+          stale.add(entry);
+        }
+      }
+    }
+    for (Path snapshot : stale) {
+      deleteTree(snapshot);
+      Files.deleteIfExists(manifest(snapshot));
+    }
+  }
+
+  private static void deleteTree(Path dir) throws IOException {
+    if (!Files.exists(dir)) {
+      return;
+    }
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+}
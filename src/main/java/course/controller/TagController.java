@@ -0,0 +1,59 @@
+package course.controller;
+
+import course.configuration.FreemarkerBasedRoute;
+import course.dao.SessionStore;
+import course.dao.TagStatsDAO;
+import course.util.SessionUtil;
+import freemarker.template.Configuration;
+import freemarker.template.TemplateException;
+import org.bson.Document;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static spark.Spark.get;
+
+public class TagController {
+
+  private final TagStatsDAO tagStatsDAO;
+  private final SessionStore sessionStore;
+  private final Configuration cfg;
+
+  public TagController(TagStatsDAO tagStatsDAO, Configuration cfg, SessionStore sessionStore)
+      throws IOException {
+    this.tagStatsDAO = tagStatsDAO;
+    this.cfg = cfg;
+    this.sessionStore = sessionStore;
+    initializeRoutes();
+  }
+
+  private void initializeRoutes() throws IOException {
+    // tag cloud, served from the in-memory snapshot without touching mongo
+    get(new FreemarkerBasedRoute("/tags", "tags.ftl", cfg) {
+      @Override
+      protected void doHandle(Request request, Response response, Writer writer)
+          throws IOException, TemplateException {
+        CompletableFuture<String> username =
+            sessionStore.findUserNameBySessionIdAsync(SessionUtil.getSessionCookie(request));
+
+        List<Document> tags = tagStatsDAO.getTags();
+        Map<String, Object> root = new HashMap<>();
+        root.put("tags", tags);
+        // the snapshot is sorted by count, so the first tag is the most used one
+        root.put("maxCount", tags.isEmpty() ? 1 : tags.get(0).get("count"));
+        String name = username.join();
+        if (name != null) {
+          root.put("username", name);
+        }
+
+        render(root, writer);
+      }
+    });
+  }
+}
@@ -1,12 +1,12 @@
 package course.controller;
 
 import course.configuration.FreemarkerBasedRoute;
-import course.dao.SessionDAO;
+import course.dao.SessionStore;
 import course.dao.UserDAO;
+import course.security.LoginThrottle;
 import course.util.SessionUtil;
 import course.util.ValidatorUtil;
 import freemarker.template.Configuration;
-import freemarker.template.SimpleHash;
 import freemarker.template.TemplateException;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.bson.Document;
@@ -17,6 +17,8 @@ import javax.servlet.http.Cookie;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import static spark.Spark.get;
 import static spark.Spark.post;
@@ -24,14 +26,16 @@ import static spark.Spark.post;
 public class UserController  {
 
   private final UserDAO userDAO;
-  private final SessionDAO sessionDAO;
+  private final SessionStore sessionStore;
+  private final LoginThrottle loginThrottle;
   private final Configuration cfg;
 
-  public UserController(UserDAO userDAO, Configuration cfg, SessionDAO sessionDAO)
-      throws IOException {
+  public UserController(UserDAO userDAO, Configuration cfg, SessionStore sessionStore,
+      LoginThrottle loginThrottle) throws IOException {
     this.userDAO = userDAO;
     this.cfg = cfg;
-    this.sessionDAO = sessionDAO;
+    this.sessionStore = sessionStore;
+    this.loginThrottle = loginThrottle;
     initializeRoutes();
   }
 
@@ -52,15 +56,23 @@ public class UserController  {
 
         if (ValidatorUtil.validateSignup(username, password, verify, email, root)) {
           // good user
-          System.out.println("Signup: Creating user with: " + username + " " + password);
-          if (!userDAO.addUser(username, password, email)) {
+          System.out.println("Signup: Creating user with: " + username);
+          boolean added;
+          try {
+            added = userDAO.addUser(username, password, email);
+          } catch (RejectedExecutionException e) {
+            response.status(503);
+            root.put("username_error", "Too many signups right now, please try again");
+            render(root, writer);
+            return;
+          }
+          if (!added) {
             // duplicate user
             root.put("username_error", "Username already in use, Please choose another");
-            this.getTemplate().process(root, writer);
+            render(root, writer);
           } else {
             // good user, let's start a session
-            String sessionID = sessionDAO.startSession(username);
-            System.out.println("Session ID is" + sessionID);
+            String sessionID = sessionStore.startSession(username);
 
             response.raw().addCookie(new Cookie("session", sessionID));
             response.redirect("/welcome");
@@ -68,18 +80,23 @@ public class UserController  {
         } else {
           // bad signup
           System.out.println("User Registration did not validate");
-          this.getTemplate().process(root, writer);
+          render(root, writer);
         }
       }
     });
 
     // present signup form for blog
     get(new FreemarkerBasedRoute("/signup", "signup.ftl", cfg) {
+      @Override
+      protected boolean usesMongo() {
+        return false;
+      }
+
       @Override
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
 
-        SimpleHash root = new SimpleHash();
+        Map<String, Object> root = new HashMap<>();
 
         // initialize values for the form.
         root.put("username", "");
@@ -90,7 +107,7 @@ public class UserController  {
         root.put("email_error", "");
         root.put("verify_error", "");
 
-        this.getTemplate().process(root, writer);
+        render(root, writer);
       }
     });
 
@@ -100,33 +117,38 @@ public class UserController  {
           throws IOException, TemplateException {
 
         String cookie = SessionUtil.getSessionCookie(request);
-        String username = sessionDAO.findUserNameBySessionId(cookie);
+        String username = sessionStore.findUserNameBySessionId(cookie);
 
         if (username == null) {
           System.out.println("welcome() can't identify the user, redirecting to signup");
           response.redirect("/signup");
 
         } else {
-          SimpleHash root = new SimpleHash();
+          Map<String, Object> root = new HashMap<>();
 
           root.put("username", username);
 
-          this.getTemplate().process(root, writer);
+          render(root, writer);
         }
       }
     });
 
     // present the login page
     get(new FreemarkerBasedRoute("/login", "login.ftl", cfg) {
+      @Override
+      protected boolean usesMongo() {
+        return false;
+      }
+
       @Override
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
-        SimpleHash root = new SimpleHash();
+        Map<String, Object> root = new HashMap<>();
 
         root.put("username", "");
         root.put("login_error", "");
 
-        this.getTemplate().process(root, writer);
+        render(root, writer);
       }
     });
 
@@ -140,14 +162,27 @@ public class UserController  {
         String username = request.queryParams("username");
         String password = request.queryParams("password");
 
-        System.out.println("Login: User submitted: " + username + "  " + password);
+        System.out.println("Login: User submitted: " + username);
 
-        Document user = userDAO.validateLogin(username, password);
+        if (!loginThrottle.tryAcquire(username, request.raw().getRemoteAddr())) {
+          response.status(429);
+          renderLoginError(username, "Too many login attempts, please wait a minute", writer);
+          return;
+        }
+
+        Document user;
+        try {
+          user = userDAO.validateLogin(username, password);
+        } catch (RejectedExecutionException e) {
+          response.status(503);
+          renderLoginError(username, "Too many logins right now, please try again", writer);
+          return;
+        }
 
         if (user != null) {
 
           // valid user, let's log them in
-          String sessionID = sessionDAO.startSession(user.get("_id").toString());
+          String sessionID = sessionStore.startSession(user.get("_id").toString());
 
           if (sessionID == null) {
             response.redirect("/internal_error");
@@ -158,14 +193,18 @@ public class UserController  {
             response.redirect("/welcome");
           }
         } else {
-          SimpleHash root = new SimpleHash();
+          renderLoginError(username, "Invalid Login", writer);
+        }
+      }
 
+      private void renderLoginError(String username, String error, Writer writer)
+          throws IOException, TemplateException {
+        Map<String, Object> root = new HashMap<>();
 
-          root.put("username", StringEscapeUtils.escapeHtml4(username));
-          root.put("password", "");
-          root.put("login_error", "Invalid Login");
-          this.getTemplate().process(root, writer);
-        }
+        root.put("username", StringEscapeUtils.escapeHtml4(username));
+        root.put("password", "");
+        root.put("login_error", error);
+        render(root, writer);
       }
     });
 
@@ -181,8 +220,8 @@ public class UserController  {
           // no session to end
           response.redirect("/login");
         } else {
-          // deletes from session table
-          sessionDAO.endSession(sessionID);
+          // ends the session in whichever session store is configured
+          sessionStore.endSession(sessionID);
 
           // this should delete the cookie
           Cookie c = SessionUtil.getSessionCookieActual(request);
@@ -197,13 +236,18 @@ public class UserController  {
 
     // used to process internal errors
     get(new FreemarkerBasedRoute("/internal_error", "error_template.ftl", cfg) {
+      @Override
+      protected boolean usesMongo() {
+        return false;
+      }
+
       @Override
       protected void doHandle(Request request, Response response, Writer writer)
           throws IOException, TemplateException {
-        SimpleHash root = new SimpleHash();
+        Map<String, Object> root = new HashMap<>();
 
         root.put("error", "System has encountered an error.");
-        this.getTemplate().process(root, writer);
+        render(root, writer);
       }
     });
   }
@@ -0,0 +1,50 @@
+package course.dao;
+
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import course.metrics.Metrics;
+import org.bson.Document;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.slice;
+
+// BlogPostDAO reads on the async driver, nothing blocks a request thread while mongo works
+public class AsyncBlogPostDAO {
+  private final MongoCollection<Document> postsCollection;
+
+  public AsyncBlogPostDAO(final MongoDatabase blogDatabase) {
+    postsCollection = blogDatabase.getCollection("posts");
+  }
+
+  public CompletableFuture<Document> findByPermalink(String permalink, int commentOffset,
+      int commentLimit) {
+    long start = System.nanoTime();
+    Metrics.RequestTimings timings = Metrics.currentRequest();
+    CompletableFuture<Document> post = MongoFutures.<Document>future(callback ->
+        postsCollection.find(eq("permalink", permalink))
+            .projection(slice("comments", commentOffset, commentLimit)).first(callback));
+
+    return post.thenCompose(found -> {
+      if (found == null || found.containsKey("comment_count")) {
+        return CompletableFuture.completedFuture(found);
+      }
+      return countComments(permalink).thenApply(count -> {
+        found.put("comment_count", count);
+        return found;
+      });
+    }).thenApply(found -> {
+      if (found != null) {
+        found.put("comment_offset", commentOffset);
+      }
+      return found;
+    }).whenComplete((found, error) -> Metrics.recordDao("findByPermalinkAsync", start, timings));
+  }
+
+  private CompletableFuture<Integer> countComments(String permalink) {
+    return MongoFutures.<Document>future(callback ->
+        postsCollection.aggregate(BlogPostDAO.commentCountPipeline(permalink)).first(callback))
+        .thenApply(count -> count == null ? 0 : count.getInteger("count"));
+  }
+}
@@ -0,0 +1,62 @@
+package course.dao;
+
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.async.client.MongoDatabase;
+import course.cache.ExpiringCache;
+import course.metrics.Metrics;
+import org.bson.Document;
+
+import java.util.concurrent.CompletableFuture;
+
+import static com.mongodb.client.model.Filters.eq;
+
+// session lookups on the async driver. logins and logouts are rare, so they go through the
+// synchronous SessionDAO, which shares its session cache with this class
+public class AsyncSessionDAO implements SessionStore {
+  private final MongoCollection<Document> sessionsCollection;
+  private final SessionDAO sessionDAO;
+  private final ExpiringCache<String, String> sessionCache;
+
+  public AsyncSessionDAO(final MongoDatabase blogDatabase, SessionDAO sessionDAO) {
+    sessionsCollection = blogDatabase.getCollection("sessions");
+    this.sessionDAO = sessionDAO;
+    sessionCache = sessionDAO.getSessionCache();
+  }
+
+  @Override
+  public String startSession(String username) {
+    return sessionDAO.startSession(username);
+  }
+
+  @Override
+  public void endSession(String sessionId) {
+    sessionDAO.endSession(sessionId);
+  }
+
+  @Override
+  public String findUserNameBySessionId(String sessionId) {
+    return findUserNameBySessionIdAsync(sessionId).join();
+  }
+
+  @Override
+  public CompletableFuture<String> findUserNameBySessionIdAsync(String sessionId) {
+    if (sessionId == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    String username = sessionCache.get(sessionId);
+    if (username != null) {
+      return CompletableFuture.completedFuture(username);
+    }
+
+    long start = System.nanoTime();
+    Metrics.RequestTimings timings = Metrics.currentRequest();
+    return MongoFutures.<Document>future(callback ->
+        sessionsCollection.find(eq("_id", sessionId)).first(callback))
+        .thenApply(session -> {
+          if (session == null) {
+            return null;
+          }
+          return sessionDAO.cache(sessionId, session.get("username").toString());
+        }).whenComplete((found, error) -> Metrics.recordDao("getSessionAsync", start, timings));
+  }
+}
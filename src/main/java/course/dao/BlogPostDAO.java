@@ -1,77 +1,613 @@
 package course.dao;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
 
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import course.metrics.Metrics;
+import course.util.PermalinkUtil;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Filters.text;
+import static com.mongodb.client.model.Projections.exclude;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Projections.slice;
 import static com.mongodb.client.model.Sorts.descending;
 
-public class BlogPostDAO {
+public class BlogPostDAO implements IndexedDAO {
+  public static final int COMMENTS_PAGE_SIZE = 50;
+  // give up on a title after this many taken permalinks instead of retrying forever
+  private static final int MAX_PERMALINK_ATTEMPTS = 20;
+  private static final Pattern SLUG = Pattern.compile("[a-z0-9_]*");
+
+  // what the post lists render, comment arrays stay on the server
+  static final Bson FEED_PROJECTION =
+      include("title", "permalink", "date", "author", "tags", "body", "comment_count");
+  private static final Bson VERSION_PROJECTION = include("version", "last_modified", "date");
+
   private final MongoCollection<Document> postsCollection;
+  private final List<PostListener> listeners = new CopyOnWriteArrayList<>();
+  private volatile LikeBatcher likeBatcher;
+  private volatile AsyncBlogPostDAO asyncReads;
+  private volatile PermalinkIndex permalinkIndex;
+  private volatile InvertedIndex invertedIndex;
+  private volatile BucketedCommentDAO bucketedComments;
 
   public BlogPostDAO(final MongoDatabase blogDatabase) {
     postsCollection = blogDatabase.getCollection("posts");
   }
 
-  public Document findByPermalink(String permalink) {
-    Document post = postsCollection.find(eq("permalink", permalink)).first();
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    String posts = postsCollection.getNamespace().getCollectionName();
+    indexManager.index(posts, new Document("permalink", 1), new IndexOptions().unique(true));
+    // keyset pages walk these indexes, so deep pages cost the same as the first one
+    indexManager.index(posts, new Document("date", -1).append("_id", -1));
+    indexManager.index(posts, new Document("tags", 1).append("date", -1).append("_id", -1));
+    // the permalink index refresh looks for posts inserted since its last run
+    indexManager.index(posts, new Document("inserted", 1));
+    // a collection has at most one text index, so every searchable field goes into this one
+    indexManager.index(posts, new Document("title", "text").append("tags", "text")
+            .append("body", "text").append("comments.body", "text"),
+        new IndexOptions().name("search").weights(new Document("title", InvertedIndex.TITLE_WEIGHT)
+            .append("tags", InvertedIndex.TAGS_WEIGHT).append("body", InvertedIndex.BODY_WEIGHT)
+            .append("comments.body", InvertedIndex.COMMENT_WEIGHT)));
 
-    // fix up if a post has no likes
-    if (post != null) {
-      List<Document> comments = (List<Document>) post.get("comments");
+    Bson sort = descending("date", "_id");
+    Bson page = PageCursor.parse("0_000000000000000000000000").toFilter();
+    indexManager.query(posts, "findByPermalink", eq("permalink", "permalink"), null);
+    indexManager.query(posts, "findByDateDescending", new Document(), sort);
+    indexManager.query(posts, "findByDateDescending(before)", page, sort);
+    indexManager.query(posts, "findByTagDateDescending", eq("tags", "tag"), sort);
+    indexManager.query(posts, "findByTagDateDescending(before)", and(eq("tags", "tag"), page), sort);
+    indexManager.query(posts, "search", text("query"), null);
+    indexManager.query(posts, "refreshPermalinkIndex", gte("inserted", new Date()), null);
+  }
+
+  public void addListener(PostListener listener) {
+    listeners.add(listener);
+  }
+
+  // from now on likes are only queued, the batcher writes them out coalesced. has to come after
+  // enableBucketedComments so the batcher writes to the collection the comments are in
+  public LikeBatcher enableLikeBatching(long flushIntervalMillis, int maxPending) {
+    // embedded likes bump the post's version in the same update that counts them
+    UnaryOperator<Document> completeUpdate =
+        bucketedComments == null ? BlogPostDAO::touch : UnaryOperator.identity();
+    likeBatcher = new LikeBatcher(commentsHolder(), completeUpdate, flushIntervalMillis,
+        maxPending, this::likesFlushed);
+    return likeBatcher;
+  }
+
+  // comments go to fixed size buckets in their own collection instead of the post's array.
+  // findByPermalink still returns posts with a comments window, so callers don't change
+  public void enableBucketedComments(BucketedCommentDAO bucketedCommentDAO) {
+    bucketedComments = bucketedCommentDAO;
+  }
+
+  // lets findByPermalinkAsync run on the async driver instead of the calling thread
+  public void enableAsyncReads(AsyncBlogPostDAO asyncBlogPostDAO) {
+    asyncReads = asyncBlogPostDAO;
+  }
+
+  // lets permalink lookups for missing posts and existence checks of known ones skip mongo
+  public PermalinkIndex enablePermalinkIndex(int cacheSize, long refreshIntervalMillis) {
+    permalinkIndex = new PermalinkIndex(postsCollection, cacheSize, refreshIntervalMillis);
+    return permalinkIndex;
+  }
+
+  // answers search from memory instead of the text index. loads every post's text now, later
+  // posts and comments are added as they are written through this DAO
+  public InvertedIndex enableInvertedIndex() {
+    InvertedIndex index = new InvertedIndex();
+    long start = System.nanoTime();
+    try {
+      for (Document post : postsCollection.find()
+          .projection(include("permalink", "date", "title", "body", "tags", "comments.body"))) {
+        String permalink = post.getString("permalink");
+        Date date = post.getDate("date");
+        @SuppressWarnings("unchecked") // written as a list of strings by addPost and the importer
+        List<String> tags = (List<String>) post.get("tags");
+        index.addPost(permalink, date == null ? 0 : date.getTime(), post.getString("title"),
+            post.getString("body"), tags);
+        addComments(index, permalink, BucketedCommentDAO.comments(post));
+      }
+      BucketedCommentDAO buckets = bucketedComments;
+      if (buckets != null) {
+        for (Document bucket : buckets.getCollection().find()
+            .projection(include("permalink", "comments.body"))) {
+          addComments(index, bucket.getString("permalink"), BucketedCommentDAO.comments(bucket));
+        }
+      }
+    } finally {
+      Metrics.recordDao("loadInvertedIndex", start);
+    }
+    invertedIndex = index;
+    return index;
+  }
+
+  private static void addComments(InvertedIndex index, String permalink, List<Document> comments) {
+    if (comments != null) {
       for (Document comment : comments) {
-        if (!comment.containsKey("num_likes")) {
-          comment.put("num_likes", 0);
+        index.addComment(permalink, comment.getString("body"));
+      }
+    }
+  }
+
+  // same as findByPermalink, but doesn't block when async reads are enabled so the caller can
+  // do other lookups while this one is in flight
+  public CompletableFuture<Document> findByPermalinkAsync(String permalink, int commentOffset,
+      int commentLimit) {
+    PermalinkIndex index = permalinkIndex;
+    if (index != null && !index.mightExist(permalink)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    AsyncBlogPostDAO async = asyncReads;
+    // the async reader only knows embedded comments
+    if (async != null && bucketedComments == null) {
+      return async.findByPermalink(permalink, commentOffset, commentLimit);
+    }
+    return CompletableFuture.completedFuture(
+        findByPermalink(permalink, commentOffset, commentLimit));
+  }
+
+  // existence check that only touches the permalink index, or nothing at all when the in-memory
+  // permalink index already knows the answer
+  public boolean postExists(String permalink) {
+    PermalinkIndex index = permalinkIndex;
+    if (index != null) {
+      if (!index.mightExist(permalink)) {
+        return false;
+      }
+      if (index.cachedId(permalink) != null) {
+        return true;
+      }
+    }
+    long start = System.nanoTime();
+    try {
+      Document post =
+          postsCollection.find(eq("permalink", permalink)).projection(include("_id")).first();
+      if (post != null && index != null) {
+        index.remember(permalink, post.get("_id"));
+      }
+      return post != null;
+    } finally {
+      Metrics.recordDao("postExists", start);
+    }
+  }
+
+  public Document findByPermalink(String permalink) {
+    return findByPermalink(permalink, 0, COMMENTS_PAGE_SIZE);
+  }
+
+  // version, last_modified and date of the post, enough to tell whether a cached copy of its
+  // page is still current. null if there is no such post
+  public Document findVersion(String permalink) {
+    PermalinkIndex index = permalinkIndex;
+    if (index != null && !index.mightExist(permalink)) {
+      return null;
+    }
+    long start = System.nanoTime();
+    try {
+      return postsCollection.find(eq("permalink", permalink)).projection(VERSION_PROJECTION)
+          .first();
+    } finally {
+      Metrics.recordDao("findVersion", start);
+    }
+  }
+
+  // loads the post with only a window of its comments, plus comment_count and comment_offset
+  // so callers can page through the rest
+  public Document findByPermalink(String permalink, int commentOffset, int commentLimit) {
+    PermalinkIndex index = permalinkIndex;
+    if (index != null && !index.mightExist(permalink)) {
+      return null;
+    }
+    BucketedCommentDAO buckets = bucketedComments;
+    if (buckets != null) {
+      return findByPermalinkWithBuckets(buckets, permalink, commentOffset, commentLimit);
+    }
+    long start = System.nanoTime();
+    try {
+      Document post = postsCollection.find(eq("permalink", permalink))
+          .projection(slice("comments", commentOffset, commentLimit)).first();
+
+      if (post != null) {
+        if (!post.containsKey("comment_count")) {
+          post.put("comment_count", countComments(permalink));
         }
+        post.put("comment_offset", commentOffset);
       }
+      return post;
+    } finally {
+      Metrics.recordDao("findByPermalink", start);
+    }
+  }
+
+  private Document findByPermalinkWithBuckets(BucketedCommentDAO buckets, String permalink,
+      int commentOffset, int commentLimit) {
+    Document post;
+    long start = System.nanoTime();
+    try {
+      post = postsCollection.find(eq("permalink", permalink)).projection(exclude("comments"))
+          .first();
+    } finally {
+      Metrics.recordDao("findByPermalink", start);
+    }
+
+    if (post != null) {
+      if (!post.containsKey("comment_count")) {
+        post.put("comment_count", buckets.countComments(permalink));
+      }
+      post.put("comments", buckets.findComments(permalink, commentOffset, commentLimit));
+      post.put("comment_offset", commentOffset);
     }
     return post;
   }
 
+  // counted on the server so the comments array never leaves mongod
+  private int countComments(String permalink) {
+    Document count = postsCollection.aggregate(commentCountPipeline(permalink)).first();
+    return count == null ? 0 : count.getInteger("count");
+  }
+
+  static List<Bson> commentCountPipeline(String permalink) {
+    return Arrays.asList(
+        new Document("$match", new Document("permalink", permalink)),
+        new Document("$project", new Document("_id", 0).append("count", new Document("$size",
+            new Document("$ifNull", Arrays.asList("$comments", Collections.emptyList()))))));
+  }
+
   public List<Document> findByDateDescending(int limit) {
-    return postsCollection.find().sort(descending("date")).limit(limit).into(new ArrayList<>());
+    return findByDateDescending(limit, null);
+  }
+
+  // before is the position of the last post on the previous page, null for the first page
+  public List<Document> findByDateDescending(int limit, PageCursor before) {
+    long start = System.nanoTime();
+    try {
+      Bson filter = before == null ? new Document() : before.toFilter();
+      return postsCollection.find(filter).projection(FEED_PROJECTION)
+          .sort(descending("date", "_id")).limit(limit).into(new ArrayList<>());
+    } finally {
+      Metrics.recordDao("findByDateDescending", start);
+    }
+  }
+
+  // the feed fields and last_modified of every post, newest first. read through a cursor, so
+  // memory stays flat however many posts there are
+  public void forEachByDateDescending(Consumer<Document> action) {
+    long start = System.nanoTime();
+    try {
+      for (Document post : postsCollection.find()
+          .projection(fields(FEED_PROJECTION, include("last_modified")))
+          .sort(descending("date", "_id"))) {
+        action.accept(post);
+      }
+    } finally {
+      Metrics.recordDao("forEachByDateDescending", start);
+    }
   }
 
   public List<Document> findByTagDateDescending(final String tag) {
-    return postsCollection.find(eq("tags", tag)).sort(descending("date")).limit(10)
-        .into(new ArrayList<>());
+    return findByTagDateDescending(tag, 10, null);
+  }
+
+  public List<Document> findByTagDateDescending(final String tag, int limit, PageCursor before) {
+    long start = System.nanoTime();
+    try {
+      Bson filter = before == null ? eq("tags", tag) : and(eq("tags", tag), before.toFilter());
+      return postsCollection.find(filter).projection(FEED_PROJECTION)
+          .sort(descending("date", "_id")).limit(limit).into(new ArrayList<>());
+    } finally {
+      Metrics.recordDao("findByTagDateDescending", start);
+    }
+  }
+
+  // posts matching any word of the query, most relevant first
+  public List<Document> search(String query, int skip, int limit) {
+    InvertedIndex index = invertedIndex;
+    if (index != null) {
+      return findByPermalinks(index.search(query, skip, limit));
+    }
+
+    long start = System.nanoTime();
+    try {
+      return postsCollection.find(text(query))
+          .projection(fields(FEED_PROJECTION, Projections.metaTextScore("score")))
+          .sort(Sorts.metaTextScore("score")).skip(skip).limit(limit).into(new ArrayList<>());
+    } finally {
+      Metrics.recordDao("search", start);
+    }
+  }
+
+  // the feed fields of the given posts, in the order of the permalinks
+  private List<Document> findByPermalinks(List<String> permalinks) {
+    if (permalinks.isEmpty()) {
+      return new ArrayList<>();
+    }
+    long start = System.nanoTime();
+    Map<String, Document> posts = new HashMap<>();
+    try {
+      for (Document post : postsCollection.find(in("permalink", permalinks))
+          .projection(FEED_PROJECTION)) {
+        posts.put(post.getString("permalink"), post);
+      }
+    } finally {
+      Metrics.recordDao("findByPermalinks", start);
+    }
+    List<Document> ordered = new ArrayList<>(permalinks.size());
+    for (String permalink : permalinks) {
+      Document post = posts.get(permalink);
+      if (post != null) {
+        ordered.add(post);
+      }
+    }
+    return ordered;
+  }
+
+  // posts written before comment_count existed get it computed once, returns how many were fixed
+  public int backfillCommentCounts() {
+    List<WriteModel<Document>> updates = new ArrayList<>();
+    for (Document count : postsCollection.aggregate(Arrays.asList(
+        new Document("$match", new Document("comment_count", new Document("$exists", false))),
+        new Document("$project", new Document("count", new Document("$size",
+            new Document("$ifNull", Arrays.asList("$comments", Collections.emptyList())))))))) {
+      updates.add(new UpdateOneModel<>(
+          and(eq("_id", count.get("_id")), exists("comment_count", false)),
+          new Document("$set", new Document("comment_count", count.getInteger("count")))));
+    }
+    if (!updates.isEmpty()) {
+      postsCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    }
+    return updates.size();
   }
 
-  public String addPost(String title, String body, List tags, String username) {
-    String permalink = title.replaceAll("\\s", "_"); // whitespace becomes _
-    permalink = permalink.replaceAll("\\W", ""); // get rid of non alphanumeric
-    permalink = permalink.toLowerCase();
+  // the permalink is the slugged title, or the first free slug_2, slug_3, ... when another post
+  // already has it. the unique index on permalink makes the check and the insert one atomic step
+  public String addPost(String title, String body, List<String> tags, String username) {
+    String slug = PermalinkUtil.slugify(title);
 
     Document post = new Document("title", title).append("author", username).append("body", body)
-        .append("permalink", permalink).append("tags", tags).append("comments", new ArrayList())
-        .append("date", new Date());
+        .append("permalink", slug).append("tags", tags).append("comment_count", 0);
+    Date now = new Date();
+    post.append("date", now).append("last_modified", now).append("version", 1);
+    if (bucketedComments == null) {
+      post.append("comments", new ArrayList());
+    }
+
+    long start = System.nanoTime();
+    try {
+      insertWithUniquePermalink(postsCollection, post);
+    } finally {
+      Metrics.recordDao("addPost", start);
+    }
 
-    postsCollection.insertOne(post);
+    String permalink = post.getString("permalink");
+    PermalinkIndex index = permalinkIndex;
+    if (index != null) {
+      index.add(permalink, post.get("_id"));
+    }
+    InvertedIndex searchIndex = invertedIndex;
+    if (searchIndex != null) {
+      searchIndex.addPost(permalink, post.getDate("date").getTime(), title, body, tags);
+    }
+
+    for (PostListener listener : listeners) {
+      listener.postAdded(permalink, tags);
+    }
 
     return permalink;
   }
 
+  // inserts the post under its permalink, or slug_2, slug_3, ... if that is taken. also used by
+  // the importer so imported posts get permalinks the same way
+  static void insertWithUniquePermalink(MongoCollection<Document> posts, Document post) {
+    String slug = post.getString("permalink");
+    post.put("inserted", new Date());
+    int suffix = 1;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        posts.insertOne(post);
+        return;
+      } catch (MongoWriteException e) {
+        if (!e.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY)
+            || attempt == MAX_PERMALINK_ATTEMPTS) {
+          throw e;
+        }
+        // jump past the suffixes already taken instead of probing them one by one
+        suffix = suffix == 1 ? Math.max(2, countPermalinks(posts, slug) + 1) : suffix + 1;
+        post.put("permalink", PermalinkUtil.candidate(slug, suffix));
+      }
+    }
+  }
+
+  // slugs only hold [a-z0-9_], so the anchored regex is an index range scan on permalink.
+  // imported permalinks may hold anything and are quoted
+  private static int countPermalinks(MongoCollection<Document> posts, String slug) {
+    String prefix = SLUG.matcher(slug).matches() ? slug : Pattern.quote(slug);
+    return (int) posts.count(regex("permalink", "^" + prefix + "(_[0-9]+)?$"));
+  }
+
   public void addPostComment(final String name, final String email, final String body,
       final String permalink) {
-    Document comment = new Document("author", name).append("body", body);
+    // the _id lets likes find the comment no matter where it ends up
+    Document comment = new Document("_id", new ObjectId()).append("author", name)
+        .append("body", body).append("num_likes", 0);
 
     if (email != null && !email.isEmpty()) {
       comment.append("email", email);
     }
 
-    postsCollection.updateOne(eq("permalink", permalink),
-        new Document("$push", new Document("comments", comment)));
+    BucketedCommentDAO buckets = bucketedComments;
+    // fetch the tags in the same round trip so listeners know which tag pages changed
+    long start = System.nanoTime();
+    Document post;
+    try {
+      if (buckets == null) {
+        post = postsCollection.findOneAndUpdate(eq("permalink", permalink),
+            touch(new Document("$push", new Document("comments", comment))
+                .append("$inc", new Document("comment_count", 1))),
+            new FindOneAndUpdateOptions().projection(include("tags")));
+      } else {
+        // the incremented count reserves this comment's place, and so its bucket
+        post = postsCollection.findOneAndUpdate(eq("permalink", permalink),
+            new Document("$inc", new Document("comment_count", 1)),
+            new FindOneAndUpdateOptions().projection(include("tags", "comment_count"))
+                .returnDocument(ReturnDocument.AFTER));
+      }
+    } finally {
+      Metrics.recordDao("addPostComment", start);
+    }
+    if (post != null && buckets != null) {
+      buckets.addComment(permalink, post.getInteger("comment_count") - 1, comment);
+      // only once the comment can be read, or a page without it could get the new version
+      touch(permalink);
+    }
+
+    if (post != null) {
+      InvertedIndex searchIndex = invertedIndex;
+      if (searchIndex != null) {
+        searchIndex.addComment(permalink, body);
+      }
+      @SuppressWarnings("unchecked") // written as a list of strings by addPost and the importer
+      List<String> tags = (List<String>) post.get("tags");
+      for (PostListener listener : listeners) {
+        listener.commentAdded(permalink, tags);
+      }
+    }
   }
 
+  // likes the ordinal-th comment of the post, counted in the order the comments were added
   public void likePost(final String permalink, final int ordinal) {
-    postsCollection.updateOne(new Document("permalink", permalink),
-        new Document("$inc", new Document("comments." + ordinal + ".num_likes", 1)));
+    BucketedCommentDAO buckets = bucketedComments;
+    if (buckets == null) {
+      like(new Document("permalink", permalink), "comments." + ordinal + ".num_likes");
+    } else {
+      like(buckets.likeTarget(permalink, ordinal), buckets.likeCounter(ordinal));
+    }
+  }
+
+  // likes a comment by its _id, stays correct while other comments are added. false if the id
+  // isn't one
+  public boolean likeComment(final String permalink, final String commentId) {
+    if (!ObjectId.isValid(commentId)) {
+      return false;
+    }
+    like(new Document("permalink", permalink).append("comments._id", new ObjectId(commentId)),
+        "comments.$.num_likes");
+    return true;
+  }
+
+  private void like(Document target, String counter) {
+    LikeBatcher batcher = likeBatcher;
+    if (batcher != null) {
+      batcher.like(target, counter);
+      return;
+    }
+
+    String permalink = target.getString("permalink");
+    Document update = new Document("$inc", new Document(counter, 1));
+    boolean bucketed = bucketedComments != null;
+    long start = System.nanoTime();
+    try {
+      commentsHolder().updateOne(target, bucketed ? update : touch(update));
+    } finally {
+      Metrics.recordDao("likePost", start);
+    }
+    if (bucketed) {
+      touch(permalink);
+    }
+
+    notifyCommentLiked(permalink);
+  }
+
+  // called by the like batcher once the likes of these posts have been written. bucketed likes
+  // live outside the posts, whose versions are then bumped in one more round trip for all
+  private void likesFlushed(Set<String> permalinks) {
+    if (bucketedComments != null) {
+      long start = System.nanoTime();
+      try {
+        postsCollection.updateMany(in("permalink", permalinks), touch(new Document()));
+      } finally {
+        Metrics.recordDao("touchPosts", start);
+      }
+    }
+    for (String permalink : permalinks) {
+      notifyCommentLiked(permalink);
+    }
+  }
+
+  // adds the bump of version and last_modified to an update of a post. every write that
+  // changes what a post's page shows goes through here or touch(permalink)
+  private static Document touch(Document update) {
+    Document inc = (Document) update.get("$inc");
+    if (inc == null) {
+      inc = new Document();
+      update.put("$inc", inc);
+    }
+    inc.append("version", 1);
+    Document set = (Document) update.get("$set");
+    if (set == null) {
+      set = new Document();
+      update.put("$set", set);
+    }
+    set.append("last_modified", new Date());
+    return update;
+  }
+
+  // for changes stored outside the post document
+  private void touch(String permalink) {
+    long start = System.nanoTime();
+    try {
+      postsCollection.updateOne(eq("permalink", permalink), touch(new Document()));
+    } finally {
+      Metrics.recordDao("touchPost", start);
+    }
+  }
+
+  // the collection whose documents hold the comments
+  private MongoCollection<Document> commentsHolder() {
+    BucketedCommentDAO buckets = bucketedComments;
+    return buckets == null ? postsCollection : buckets.getCollection();
+  }
+
+  private void notifyCommentLiked(String permalink) {
+    for (PostListener listener : listeners) {
+      listener.commentLiked(permalink);
+    }
   }
 
 }
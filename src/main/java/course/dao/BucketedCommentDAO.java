@@ -0,0 +1,207 @@
+package course.dao;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
+import course.metrics.Metrics;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+// comments kept outside the post, in fixed size buckets:
+// { permalink, bucket: n, count, comments: [ { _id, author, body, email, num_likes } ] }.
+// comment number i of a post (in the order they were added) lives in bucket i / bucketSize, so
+// a post never grows with its comments and a page of comments touches one or two buckets.
+// the bucket size must not change once comments are stored
+public class BucketedCommentDAO implements IndexedDAO {
+  public static final int DEFAULT_BUCKET_SIZE = 100;
+
+  private final MongoCollection<Document> commentsCollection;
+  private final MongoCollection<Document> postsCollection;
+  private final int bucketSize;
+
+  public BucketedCommentDAO(final MongoDatabase blogDatabase, int bucketSize) {
+    if (bucketSize <= 0) {
+      throw new IllegalArgumentException("bucketSize must be positive: " + bucketSize);
+    }
+    commentsCollection = blogDatabase.getCollection("comments");
+    postsCollection = blogDatabase.getCollection("posts");
+    this.bucketSize = bucketSize;
+  }
+
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    String comments = commentsCollection.getNamespace().getCollectionName();
+    indexManager.index(comments, new Document("permalink", 1).append("bucket", 1),
+        new IndexOptions().unique(true));
+    indexManager.query(comments, "findComments",
+        and(eq("permalink", "permalink"), gte("bucket", 0), lte("bucket", 1)), ascending("bucket"));
+  }
+
+  MongoCollection<Document> getCollection() {
+    return commentsCollection;
+  }
+
+  // the comments from offset on, at most limit of them, in the order they were added
+  public List<Document> findComments(String permalink, int offset, int limit) {
+    List<Document> comments = new ArrayList<>();
+    if (limit <= 0) {
+      return comments;
+    }
+    int firstBucket = offset / bucketSize;
+    int lastBucket = (int) (((long) offset + limit - 1) / bucketSize);
+    int skip = offset - firstBucket * bucketSize;
+
+    long start = System.nanoTime();
+    try {
+      for (Document bucket : commentsCollection.find(and(eq("permalink", permalink),
+          gte("bucket", firstBucket), lte("bucket", lastBucket)))
+          .projection(include("comments")).sort(ascending("bucket"))) {
+        for (Document comment : comments(bucket)) {
+          if (skip > 0) {
+            skip--;
+          } else if (comments.size() < limit) {
+            comments.add(comment);
+          }
+        }
+      }
+    } finally {
+      Metrics.recordDao("findComments", start);
+    }
+    return comments;
+  }
+
+  public int countComments(String permalink) {
+    long start = System.nanoTime();
+    try {
+      Document count = commentsCollection.aggregate(Arrays.asList(
+          new Document("$match", new Document("permalink", permalink)),
+          new Document("$group", new Document("_id", null)
+              .append("count", new Document("$sum", "$count"))))).first();
+      return count == null ? 0 : count.getInteger("count");
+    } finally {
+      Metrics.recordDao("countComments", start);
+    }
+  }
+
+  // ordinal is the comment's number within the post, reserved by incrementing comment_count
+  void addComment(String permalink, int ordinal, Document comment) {
+    Document bucket = new Document("permalink", permalink).append("bucket", ordinal / bucketSize);
+    Document push = new Document("$push", new Document("comments", comment))
+        .append("$inc", new Document("count", 1));
+
+    long start = System.nanoTime();
+    try {
+      try {
+        commentsCollection.updateOne(bucket, push, new UpdateOptions().upsert(true));
+      } catch (MongoWriteException e) {
+        // two upserts raced to create the bucket, the loser's retry finds it
+        if (!e.getError().getCategory().equals(ErrorCategory.DUPLICATE_KEY)) {
+          throw e;
+        }
+        commentsCollection.updateOne(bucket, push, new UpdateOptions().upsert(true));
+      }
+    } finally {
+      Metrics.recordDao("addBucketedComment", start);
+    }
+  }
+
+  // where like counters live: (bucket filter, num_likes path) of the ordinal-th comment
+  Document likeTarget(String permalink, int ordinal) {
+    return new Document("permalink", permalink).append("bucket", ordinal / bucketSize);
+  }
+
+  String likeCounter(int ordinal) {
+    return "comments." + (ordinal % bucketSize) + ".num_likes";
+  }
+
+  // moves comments embedded in posts into buckets, for switching an existing blog to bucketed
+  // comments. meant to run while the blog is stopped. comments that were already bucketed for a
+  // post are kept after its embedded ones. every step can be repeated: embedded comments get
+  // their _id on the post before anything is copied, the merge drops comments it has already
+  // seen by _id, and buckets are replaced one at a time rather than deleted first, so a run that
+  // died halfway is finished by the next one. returns the number of posts migrated
+  public int migrateEmbeddedComments() {
+    int migrated = 0;
+    for (Document post : postsCollection.find(exists("comments.0"))
+        .projection(include("permalink", "comments"))) {
+      String permalink = post.getString("permalink");
+      List<Document> embedded = comments(post);
+      boolean missingIds = false;
+      for (Document comment : embedded) {
+        // likes are addressed by _id from now on
+        if (!comment.containsKey("_id")) {
+          comment.put("_id", new ObjectId());
+          missingIds = true;
+        }
+      }
+      if (missingIds) {
+        postsCollection.updateOne(eq("_id", post.get("_id")),
+            new Document("$set", new Document("comments", embedded)));
+      }
+
+      Map<Object, Document> merged = new LinkedHashMap<>();
+      for (Document comment : embedded) {
+        merged.putIfAbsent(comment.get("_id"), comment);
+      }
+      for (Document comment : findComments(permalink, 0, Integer.MAX_VALUE)) {
+        merged.putIfAbsent(comment.get("_id"), comment);
+      }
+      List<Document> comments = new ArrayList<>(merged.values());
+
+      replaceComments(permalink, comments);
+      postsCollection.updateOne(eq("_id", post.get("_id")),
+          new Document("$set", new Document("comment_count", comments.size()))
+              .append("$unset", new Document("comments", "")));
+      migrated++;
+    }
+    return migrated;
+  }
+
+  // makes these the post's comments, in this order. each bucket is replaced on its own, so
+  // writing the same comments again after a failure is harmless
+  void replaceComments(String permalink, List<Document> comments) {
+    int bucketCount = (comments.size() + bucketSize - 1) / bucketSize;
+    long start = System.nanoTime();
+    try {
+      for (int bucket = 0; bucket < bucketCount; bucket++) {
+        List<Document> bucketComments = comments.subList(bucket * bucketSize,
+            Math.min(comments.size(), (bucket + 1) * bucketSize));
+        commentsCollection.replaceOne(and(eq("permalink", permalink), eq("bucket", bucket)),
+            new Document("permalink", permalink).append("bucket", bucket)
+                .append("count", bucketComments.size()).append("comments", bucketComments),
+            new UpdateOptions().upsert(true));
+      }
+      commentsCollection.deleteMany(and(eq("permalink", permalink), gte("bucket", bucketCount)));
+    } finally {
+      Metrics.recordDao("replaceBucketedComments", start);
+    }
+  }
+
+  // posts whose comments are still embedded and won't show in bucketed mode
+  public long countUnmigratedPosts() {
+    return postsCollection.count(exists("comments.0"));
+  }
+
+  // the comments array of a post or a bucket, which only ever holds documents
+  @SuppressWarnings("unchecked")
+  static List<Document> comments(Document holder) {
+    return (List<Document>) holder.get("comments");
+  }
+}
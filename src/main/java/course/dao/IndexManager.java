@@ -0,0 +1,137 @@
+package course.dao;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// creates the indexes declared by the DAOs at startup and checks that none of their
+// queries falls back to a collection scan
+public class IndexManager {
+  private final MongoDatabase database;
+  private final List<IndexSpec> indexes = new ArrayList<>();
+  private final List<QuerySpec> queries = new ArrayList<>();
+
+  public IndexManager(final MongoDatabase database) {
+    this.database = database;
+  }
+
+  public void index(String collection, Bson keys) {
+    index(collection, keys, new IndexOptions());
+  }
+
+  public void index(String collection, Bson keys, IndexOptions options) {
+    indexes.add(new IndexSpec(collection, keys, options));
+  }
+
+  // a query with representative values, explained after the indexes are in place
+  public void query(String collection, String name, Bson filter, Bson sort) {
+    queries.add(new QuerySpec(collection, name, filter, sort));
+  }
+
+  // strict turns a missing index or a collection scan into a startup failure instead of a warning
+  public void bootstrap(boolean strict) {
+    List<String> problems = new ArrayList<>();
+    problems.addAll(ensureIndexes());
+    problems.addAll(verifyQueryPlans());
+
+    for (String problem : problems) {
+      System.out.println("WARNING: " + problem);
+    }
+    if (strict && !problems.isEmpty()) {
+      throw new IllegalStateException("Index verification failed: " + problems);
+    }
+  }
+
+  public List<String> ensureIndexes() {
+    List<String> problems = new ArrayList<>();
+    for (IndexSpec index : indexes) {
+      try {
+        String name = database.getCollection(index.collection).createIndex(index.keys, index.options);
+        System.out.println("Index " + index.collection + "." + name + " is in place");
+      } catch (MongoException e) {
+        // e.g. a unique index over a restored collection that already holds duplicates
+        problems.add("could not create index " + index.keys + " on " + index.collection + ": "
+            + e.getMessage());
+      }
+    }
+    return problems;
+  }
+
+  public List<String> verifyQueryPlans() {
+    List<String> problems = new ArrayList<>();
+    for (QuerySpec query : queries) {
+      FindIterable<Document> find = database.getCollection(query.collection).find(query.filter);
+      if (query.sort != null) {
+        find = find.sort(query.sort);
+      }
+      Document plan = find.modifiers(new Document("$explain", true)).first();
+      if (plan != null && isCollectionScan(plan)) {
+        problems.add(query.collection + " query " + query.name + " is a COLLSCAN: " + plan.toJson());
+      }
+    }
+    return problems;
+  }
+
+  private static boolean isCollectionScan(Document plan) {
+    // servers before 3.0 report the access path as a cursor name
+    if ("BasicCursor".equals(plan.get("cursor"))) {
+      return true;
+    }
+    Object queryPlanner = plan.get("queryPlanner");
+    return queryPlanner instanceof Document
+        && containsStage(((Document) queryPlanner).get("winningPlan"), "COLLSCAN");
+  }
+
+  private static boolean containsStage(Object node, String stage) {
+    if (node instanceof Document) {
+      Document document = (Document) node;
+      if (stage.equals(document.get("stage"))) {
+        return true;
+      }
+      for (Object child : document.values()) {
+        if (containsStage(child, stage)) {
+          return true;
+        }
+      }
+    } else if (node instanceof List) {
+      for (Object child : (List<?>) node) {
+        if (containsStage(child, stage)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static final class IndexSpec {
+    private final String collection;
+    private final Bson keys;
+    private final IndexOptions options;
+
+    private IndexSpec(String collection, Bson keys, IndexOptions options) {
+      this.collection = collection;
+      this.keys = keys;
+      this.options = options;
+    }
+  }
+
+  private static final class QuerySpec {
+    private final String collection;
+    private final String name;
+    private final Bson filter;
+    private final Bson sort;
+
+    private QuerySpec(String collection, String name, Bson filter, Bson sort) {
+      this.collection = collection;
+      this.name = name;
+      this.filter = filter;
+      this.sort = sort;
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package course.dao;
+
+// a DAO that tells the IndexManager which indexes and queries it relies on
+public interface IndexedDAO {
+
+  void declareIndexes(IndexManager indexManager);
+}
@@ -0,0 +1,212 @@
+package course.dao;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import course.metrics.Counter;
+import course.metrics.Metrics;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.gte;
+
+// tells the other nodes about writes that make their in-process caches stale. every write this
+// node's DAOs report is published as a small event to a capped collection, and a background
+// thread tails that collection with a tailable cursor and replays the other nodes' events to
+// the local listeners. replaying an event twice only evicts twice, so after a lost connection
+// the tail simply starts again a little before the last event it saw
+public class InvalidationBus implements PostListener, SessionListener {
+  public static final long DEFAULT_SIZE_BYTES = 16 * 1024 * 1024;
+
+  private static final String COLLECTION = "invalidations";
+  // mongod's code for creating a collection that is already there
+  private static final int NAMESPACE_EXISTS = 48;
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  // how far before the last seen event a resumed tail starts, _ids are made from the clocks
+  // of the publishing nodes, which may not agree
+  private static final long RESUME_OVERLAP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private final MongoCollection<Document> events;
+  // events this node published come back through the tail and are skipped
+  private final String node = new ObjectId().toHexString();
+  private final List<PostListener> postListeners = new CopyOnWriteArrayList<>();
+  private final List<SessionListener> sessionListeners = new CopyOnWriteArrayList<>();
+  private final Thread tailer;
+  private volatile boolean running = true;
+  private volatile MongoCursor<Document> cursor;
+  private volatile long lastSeenAt = System.currentTimeMillis();
+
+  public InvalidationBus(final MongoDatabase blogDatabase, long sizeBytes) {
+    createCapped(blogDatabase, sizeBytes);
+    events = blogDatabase.getCollection(COLLECTION);
+    tailer = new Thread(this::tail, "invalidation-bus");
+    tailer.setDaemon(true);
+    tailer.start();
+  }
+
+  private static void createCapped(MongoDatabase blogDatabase, long sizeBytes) {
+    try {
+      blogDatabase.createCollection(COLLECTION,
+          new CreateCollectionOptions().capped(true).sizeInBytes(sizeBytes));
+    } catch (MongoCommandException e) {
+      if (e.getErrorCode() != NAMESPACE_EXISTS) {
+        throw e;
+      }
+    }
+  }
+
+  // where events from other nodes are delivered, on the bus thread
+  public void addPostListener(PostListener listener) {
+    postListeners.add(listener);
+  }
+
+  public void addSessionListener(SessionListener listener) {
+    sessionListeners.add(listener);
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  public void shutdown() {
+    running = false;
+    MongoCursor<Document> current = cursor;
+    if (current != null) {
+      current.close();
+    }
+    tailer.interrupt();
+  }
+
+  @Override
+  public void postAdded(String permalink, List<String> tags) {
+    publish(new Document("type", "post").append("permalink", permalink).append("tags", tags));
+  }
+
+  @Override
+  public void commentAdded(String permalink, List<String> tags) {
+    publish(new Document("type", "comment").append("permalink", permalink).append("tags", tags));
+  }
+
+  @Override
+  public void commentLiked(String permalink) {
+    publish(new Document("type", "like").append("permalink", permalink));
+  }
+
+  @Override
+  public void sessionEnded(String sessionId) {
+    publish(new Document("type", "session").append("session", sessionId));
+  }
+
+  // the write this event describes has already happened, so a failed publish is only logged.
+  // the other nodes catch up when their cache entries expire
+  private void publish(Document event) {
+    event.append("_id", new ObjectId()).append("node", node);
+    long start = System.nanoTime();
+    try {
+      events.insertOne(event);
+      events("published").increment();
+    } catch (MongoException e) {
+      events("lost").increment();
+      System.out.println("Could not publish invalidation " + event.getString("type") + ": "
+          + e.getMessage());
+    } finally {
+      Metrics.recordDao("publishInvalidation", start);
+    }
+  }
+
+  private void tail() {
+    while (running) {
+      try {
+        // a tailable cursor whose query matches nothing is dead right away, this marker makes
+        // sure there is something to match
+        Date since = new Date(lastSeenAt - RESUME_OVERLAP_MILLIS);
+        events.insertOne(new Document("_id", new ObjectId()).append("type", "tail")
+            .append("node", node));
+        cursor = events.find(gte("_id", new ObjectId(since)))
+            .cursorType(CursorType.TailableAwait).noCursorTimeout(true).iterator();
+        while (running && cursor.hasNext()) {
+          apply(cursor.next());
+        }
+      } catch (RuntimeException e) {
+        // closing the cursor from shutdown() ends up here too
+        if (!running) {
+          return;
+        }
+        events("reconnects").increment();
+        System.out.println("Invalidation bus lost its cursor, resuming in "
+            + RETRY_DELAY_MILLIS + "ms: " + e.getMessage());
+      } finally {
+        MongoCursor<Document> current = cursor;
+        if (current != null) {
+          current.close();
+        }
+      }
+      // also reached when the cursor died because the capped collection wrapped past it
+      sleep(RETRY_DELAY_MILLIS);
+    }
+  }
+
+  private void apply(Document event) {
+    lastSeenAt = Math.max(lastSeenAt, event.getObjectId("_id").getDate().getTime());
+    if (node.equals(event.getString("node"))) {
+      return;
+    }
+    String permalink = event.getString("permalink");
+    @SuppressWarnings("unchecked") // published as the List<String> the listeners were given
+    List<String> tags = (List<String>) event.get("tags");
+    try {
+      switch (event.getString("type")) {
+        case "post":
+          for (PostListener listener : postListeners) {
+            listener.postAdded(permalink, tags);
+          }
+          break;
+        case "comment":
+          for (PostListener listener : postListeners) {
+            listener.commentAdded(permalink, tags);
+          }
+          break;
+        case "like":
+          for (PostListener listener : postListeners) {
+            listener.commentLiked(permalink);
+          }
+          break;
+        case "session":
+          for (SessionListener listener : sessionListeners) {
+            listener.sessionEnded(event.getString("session"));
+          }
+          break;
+        default:
+          // tail markers, or events from a newer version of the blog
+          return;
+      }
+      events("received").increment();
+    } catch (RuntimeException e) {
+      // one bad listener must not stop this node from hearing about later writes
+      e.printStackTrace();
+    }
+  }
+
+  private void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      running = false;
+    }
+  }
+
+  private static Counter events(String outcome) {
+    return Metrics.counter("blog_invalidation_events_total",
+        "Cache invalidation events published to and received from other nodes",
+        "outcome", outcome);
+  }
+}
@@ -0,0 +1,106 @@
+package course.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// in-process term -> post index for search without a round trip to mongo. kept up to date by
+// BlogPostDAO as posts and comments are added. scoring follows the text index: every
+// occurrence of a query term adds the weight of the field it was found in
+public class InvertedIndex {
+  static final int TITLE_WEIGHT = 10;
+  static final int TAGS_WEIGHT = 5;
+  static final int BODY_WEIGHT = 2;
+  static final int COMMENT_WEIGHT = 1;
+
+  // stored text is html escaped and has <p> for line breaks, so entity names are noise too
+  private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+      "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it", "of",
+      "on", "or", "that", "the", "this", "to", "was", "with", "p", "amp", "quot", "lt", "gt",
+      "39", "nbsp"));
+
+  private final Map<String, Map<String, Float>> postings = new ConcurrentHashMap<>();
+  private final Map<String, Long> postDates = new ConcurrentHashMap<>();
+
+  public void addPost(String permalink, long date, String title, String body, List<String> tags) {
+    postDates.put(permalink, date);
+    addText(permalink, title, TITLE_WEIGHT);
+    addText(permalink, body, BODY_WEIGHT);
+    if (tags != null) {
+      for (String tag : tags) {
+        addText(permalink, tag, TAGS_WEIGHT);
+      }
+    }
+  }
+
+  public void addComment(String permalink, String body) {
+    addText(permalink, body, COMMENT_WEIGHT);
+  }
+
+  // permalinks of the matching posts, best match first and newest first among equal scores
+  public List<String> search(String query, int skip, int limit) {
+    Map<String, Float> scores = new HashMap<>();
+    for (String term : new HashSet<>(tokenize(query))) {
+      Map<String, Float> posts = postings.get(term);
+      if (posts != null) {
+        for (Map.Entry<String, Float> post : posts.entrySet()) {
+          scores.merge(post.getKey(), post.getValue(), Float::sum);
+        }
+      }
+    }
+    if (scores.size() <= skip) {
+      return Collections.emptyList();
+    }
+
+    List<String> ranked = new ArrayList<>(scores.keySet());
+    ranked.sort((a, b) -> {
+      int byScore = Float.compare(scores.get(b), scores.get(a));
+      return byScore != 0 ? byScore
+          : Long.compare(postDates.getOrDefault(b, 0L), postDates.getOrDefault(a, 0L));
+    });
+    return new ArrayList<>(ranked.subList(skip, (int) Math.min(ranked.size(), (long) skip + limit)));
+  }
+
+  public int getTermCount() {
+    return postings.size();
+  }
+
+  public int getPostCount() {
+    return postDates.size();
+  }
+
+  private void addText(String permalink, String text, float weight) {
+    for (String term : tokenize(text)) {
+      postings.computeIfAbsent(term, key -> new ConcurrentHashMap<>())
+          .merge(permalink, weight, Float::sum);
+    }
+  }
+
+  // lowercased runs of letters and digits, minus stop words
+  static List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<>();
+    if (text == null) {
+      return terms;
+    }
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        String term = text.substring(start, i).toLowerCase();
+        if (!STOP_WORDS.contains(term)) {
+          terms.add(term);
+        }
+        start = -1;
+      }
+    }
+    return terms;
+  }
+}
@@ -0,0 +1,227 @@
+package course.dao;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import course.metrics.Metrics;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+// accumulates comment likes in memory and writes them as one $inc per document holding the
+// liked comments, either every flush interval or as soon as maxPending likes are waiting.
+// a like is a target filter (always including the permalink) and the counter path to increment
+public class LikeBatcher {
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+  public static final int DEFAULT_MAX_PENDING = 1000;
+
+  private final MongoCollection<Document> collection;
+  private final UnaryOperator<Document> completeUpdate;
+  private final Consumer<Set<String>> onFlushed;
+  private final int maxPending;
+  private final ConcurrentHashMap<LikeKey, Integer> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingLikes = new AtomicInteger();
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong likesReceived = new AtomicLong();
+  private final AtomicLong likesWritten = new AtomicLong();
+  private final AtomicLong likesDropped = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong documentUpdates = new AtomicLong();
+
+  // completeUpdate may add to each document's $inc update before it is written. onFlushed is
+  // called once per flush with the permalinks whose likes have been written
+  LikeBatcher(MongoCollection<Document> collection, UnaryOperator<Document> completeUpdate,
+      long flushIntervalMillis, int maxPending, Consumer<Set<String>> onFlushed) {
+    this.collection = collection;
+    this.completeUpdate = completeUpdate;
+    this.maxPending = maxPending;
+    this.onFlushed = onFlushed;
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "like-batcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  void like(Document target, String counter) {
+    pending.merge(new LikeKey(target, counter), 1, Integer::sum);
+    likesReceived.incrementAndGet();
+    if (pendingLikes.incrementAndGet() == maxPending) {
+      try {
+        scheduler.execute(this::flushQuietly);
+      } catch (RejectedExecutionException e) {
+        // shutting down, write it out on this thread instead
+        flushQuietly();
+      }
+    }
+  }
+
+  public synchronized void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    // coalesce every like waiting for the same document into a single update
+    Map<Document, Document> incrementsByTarget = new LinkedHashMap<>();
+    Map<Document, Integer> likesByTarget = new HashMap<>();
+    int likes = 0;
+    for (LikeKey key : pending.keySet()) {
+      // likes that arrive after the remove start a new entry and go out with the next flush
+      Integer count = pending.remove(key);
+      if (count == null) {
+        continue;
+      }
+      pendingLikes.addAndGet(-count);
+      likes += count;
+      incrementsByTarget.computeIfAbsent(key.target, target -> new Document())
+          .append(key.counter, count);
+      likesByTarget.merge(key.target, count, Integer::sum);
+    }
+
+    List<WriteModel<Document>> updates = new ArrayList<>();
+    for (Map.Entry<Document, Document> increments : incrementsByTarget.entrySet()) {
+      updates.add(new UpdateOneModel<>(increments.getKey(),
+          completeUpdate.apply(new Document("$inc", increments.getValue()))));
+    }
+
+    Set<Integer> failed = new HashSet<>();
+    MongoBulkWriteException failure = null;
+    long start = System.nanoTime();
+    try {
+      collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      // the batch is unordered, so every update but the ones listed here was applied
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failed.add(error.getIndex());
+      }
+      failure = e;
+    } catch (MongoException e) {
+      // retrying could apply part of the batch twice, so these likes are dropped
+      likesDropped.addAndGet(likes);
+      throw e;
+    } finally {
+      Metrics.recordDao("likeBatchFlush", start);
+    }
+
+    flushes.incrementAndGet();
+    documentUpdates.addAndGet(updates.size() - failed.size());
+    Set<String> permalinks = new LinkedHashSet<>();
+    int index = 0;
+    for (Document target : incrementsByTarget.keySet()) {
+      int count = likesByTarget.get(target);
+      if (failed.contains(index++)) {
+        likesDropped.addAndGet(count);
+      } else {
+        likesWritten.addAndGet(count);
+        permalinks.add(target.getString("permalink"));
+      }
+    }
+    if (!permalinks.isEmpty()) {
+      onFlushed.accept(permalinks);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  // stops the flush timer and writes whatever is still pending
+  public void shutdown() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    System.out.println("Like batcher stopped: " + this);
+  }
+
+  public int getPendingLikes() {
+    return pendingLikes.get();
+  }
+
+  public long getLikesReceived() {
+    return likesReceived.get();
+  }
+
+  public long getLikesWritten() {
+    return likesWritten.get();
+  }
+
+  public long getLikesDropped() {
+    return likesDropped.get();
+  }
+
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  public long getDocumentUpdates() {
+    return documentUpdates.get();
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static final class LikeKey {
+    private final Document target;
+    private final String counter;
+
+    private LikeKey(Document target, String counter) {
+      this.target = target;
+      this.counter = counter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof LikeKey)) {
+        return false;
+      }
+      LikeKey other = (LikeKey) o;
+      return counter.equals(other.counter) && target.equals(other.target);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * target.hashCode() + counter.hashCode();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LikeBatcher{received=" + likesReceived + ", written=" + likesWritten + ", dropped="
+        + likesDropped + ", pending=" + pendingLikes + ", flushes=" + flushes
+        + ", documentUpdates=" + documentUpdates + "}";
+  }
+}
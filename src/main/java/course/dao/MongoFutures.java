@@ -0,0 +1,26 @@
+package course.dao;
+
+import com.mongodb.async.SingleResultCallback;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+// adapts the async driver's callbacks to CompletableFutures
+final class MongoFutures {
+
+  private MongoFutures() {
+    throw new UnsupportedOperationException();
+  }
+
+  static <T> CompletableFuture<T> future(Consumer<SingleResultCallback<T>> operation) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    operation.accept((result, error) -> {
+      if (error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(result);
+      }
+    });
+    return future;
+  }
+}
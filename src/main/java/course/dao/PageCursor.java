@@ -0,0 +1,60 @@
+package course.dao;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+
+// keyset position in a (date desc, _id desc) ordered post list, encoded as "<millis>_<objectid>"
+public final class PageCursor {
+  private final Date date;
+  private final ObjectId id;
+
+  private PageCursor(Date date, ObjectId id) {
+    this.date = date;
+    this.id = id;
+  }
+
+  // cursor pointing just past the given post
+  public static String after(Document post) {
+    return new PageCursor(post.getDate("date"), post.getObjectId("_id")).toString();
+  }
+
+  // returns null for a missing or malformed cursor, which callers treat as the first page
+  public static PageCursor parse(String cursor) {
+    if (cursor == null) {
+      return null;
+    }
+    int separator = cursor.indexOf('_');
+    if (separator <= 0) {
+      return null;
+    }
+    String hexId = cursor.substring(separator + 1);
+    if (!ObjectId.isValid(hexId)) {
+      return null;
+    }
+    try {
+      long millis = Long.parseLong(cursor.substring(0, separator));
+      return new PageCursor(new Date(millis), new ObjectId(hexId));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // posts strictly older than this position
+  public Bson toFilter() {
+    return or(lt("date", date), and(eq("date", date), lt("_id", id)));
+  }
+
+  // the one spelling of this position, however the parsed string was written
+  @Override
+  public String toString() {
+    return date.getTime() + "_" + id.toHexString();
+  }
+}
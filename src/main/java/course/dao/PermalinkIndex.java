@@ -0,0 +1,187 @@
+package course.dao;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import course.cache.BloomFilter;
+import course.cache.ExpiringCache;
+import course.metrics.Counter;
+import course.metrics.Metrics;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Projections.include;
+
+// in-memory view of which permalinks exist. a bloom filter over every permalink answers "no such
+// post" without asking mongo, and an lru of permalink -> _id answers "yes" for recently seen
+// posts. posts written by other nodes are picked up by a periodic refresh, until then this node
+// treats them as missing
+public class PermalinkIndex implements PostListener {
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 5000;
+
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+  private static final long MIN_CAPACITY = 100000;
+  private static final long CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // how far back a refresh looks, covers clock skew between nodes and slow inserts
+  private static final long REFRESH_OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final MongoCollection<Document> postsCollection;
+  private final ExpiringCache<String, Object> ids;
+  private final ScheduledExecutorService refresher;
+  private final AtomicLong added = new AtomicLong();
+  private volatile BloomFilter permalinks;
+  private volatile long capacity;
+  private volatile long refreshedAt;
+  private final AtomicBoolean reloading = new AtomicBoolean();
+  // permalinks added while load is scanning, guarded by this
+  private List<String> addedDuringLoad;
+
+  PermalinkIndex(MongoCollection<Document> postsCollection, int cacheSize,
+      long refreshIntervalMillis) {
+    this.postsCollection = postsCollection;
+    this.ids = new ExpiringCache<>(cacheSize, CACHE_TTL_MILLIS);
+    load();
+    refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "permalink-index-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refresher.scheduleWithFixedDelay(this::refresh, refreshIntervalMillis, refreshIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  // false means the post certainly doesn't exist (as of the last refresh)
+  public boolean mightExist(String permalink) {
+    if (permalink == null || !permalinks.mightContain(permalink)) {
+      lookups("rejected").increment();
+      return false;
+    }
+    return true;
+  }
+
+  // the _id of a post this node has recently seen, null if it isn't cached
+  public Object cachedId(String permalink) {
+    Object id = ids.get(permalink);
+    if (id != null) {
+      lookups("cached").increment();
+    }
+    return id;
+  }
+
+  public void add(String permalink, Object id) {
+    ids.put(permalink, id);
+    postAdded(permalink, null);
+  }
+
+  // also hears about posts added on other nodes, before the next refresh would find them
+  @Override
+  public void postAdded(String permalink, List<String> tags) {
+    synchronized (this) {
+      permalinks.add(permalink);
+      if (addedDuringLoad != null) {
+        addedDuringLoad.add(permalink);
+      }
+    }
+    // past its capacity the filter's false positive rate climbs, so start over with a bigger one.
+    // the rebuild scans every post, so it runs on the refresher rather than this request's thread
+    if (added.incrementAndGet() > capacity && reloading.compareAndSet(false, true)) {
+      refresher.execute(this::reload);
+    }
+  }
+
+  void remember(String permalink, Object id) {
+    lookups("mongo").increment();
+    ids.put(permalink, id);
+  }
+
+  public ExpiringCache<String, Object> getIds() {
+    return ids;
+  }
+
+  public void shutdown() {
+    refresher.shutdownNow();
+  }
+
+  private void reload() {
+    try {
+      load();
+    } catch (MongoException e) {
+      System.out.println("Permalink index rebuild failed, retrying later: " + e.getMessage());
+    } finally {
+      reloading.set(false);
+    }
+  }
+
+  // builds the new filter without holding the lock, posts added meanwhile are replayed into it
+  // before it replaces the old one
+  private void load() {
+    long start = System.nanoTime();
+    synchronized (this) {
+      addedDuringLoad = new ArrayList<>();
+    }
+    try {
+      long startedAt = System.currentTimeMillis();
+      long count = postsCollection.count();
+      long newCapacity = Math.max(MIN_CAPACITY, count * 2);
+      BloomFilter filter = new BloomFilter(newCapacity, FALSE_POSITIVE_RATE);
+      for (Document post : postsCollection.find().projection(include("permalink"))) {
+        remember(filter, post);
+      }
+      synchronized (this) {
+        for (String permalink : addedDuringLoad) {
+          filter.add(permalink);
+        }
+        permalinks = filter;
+        capacity = newCapacity;
+        added.set(count + addedDuringLoad.size());
+        refreshedAt = startedAt;
+      }
+    } finally {
+      synchronized (this) {
+        addedDuringLoad = null;
+      }
+      Metrics.recordDao("loadPermalinkIndex", start);
+    }
+  }
+
+  // adds posts inserted since the last refresh, on this or any other node. goes by the insert
+  // time rather than the post's date, imported posts keep the date they were first published.
+  // runs on the refresher like the rebuild, so the two never overlap
+  void refresh() {
+    long start = System.nanoTime();
+    try {
+      long startedAt = System.currentTimeMillis();
+      for (Document post : postsCollection
+          .find(gte("inserted", new Date(refreshedAt - REFRESH_OVERLAP_MILLIS)))
+          .projection(include("permalink"))) {
+        remember(permalinks, post);
+      }
+      refreshedAt = startedAt;
+    } catch (MongoException e) {
+      System.out.println("Permalink index refresh failed, retrying later: " + e.getMessage());
+    } finally {
+      Metrics.recordDao("refreshPermalinkIndex", start);
+    }
+  }
+
+  private static void remember(BloomFilter filter, Document post) {
+    String permalink = post.getString("permalink");
+    if (permalink != null) {
+      filter.add(permalink);
+    }
+  }
+
+  private static Counter lookups(String result) {
+    return Metrics.counter("blog_permalink_lookups_total",
+        "Permalink existence checks by how they were answered", "result", result);
+  }
+}
@@ -0,0 +1,66 @@
+package course.dao;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Sorts.ascending;
+
+// writes every post to a PostFile in _id order, reading the collection through a cursor so
+// memory stays flat. the checkpoint holds the last _id and the file offset after each batch; a
+// resumed export cuts the file back to that offset and continues after that _id
+public class PostExporter {
+  private static final long REPORT_INTERVAL_NANOS = 5000000000L;
+
+  private final MongoCollection<Document> postsCollection;
+  private final int batchSize;
+
+  public PostExporter(final MongoDatabase blogDatabase, int batchSize) {
+    postsCollection = blogDatabase.getCollection("posts");
+    this.batchSize = batchSize;
+  }
+
+  public long exportTo(Path file) throws IOException {
+    TransferCheckpoint checkpoint = TransferCheckpoint.load(file);
+    long records = checkpoint.getRecords();
+    Bson filter = new Document();
+    if (checkpoint.getLastId() != null) {
+      System.out.println("Resuming export to " + file + " after " + records + " posts");
+      filter = gt("_id", Document.parse(checkpoint.getLastId()).get("_id"));
+    }
+
+    long start = System.nanoTime();
+    long lastReport = start;
+    long startRecords = records;
+    try (PostFile.Writer writer = new PostFile.Writer(file, checkpoint.getOffset())) {
+      for (Document post : postsCollection.find(filter).sort(ascending("_id"))
+          .batchSize(batchSize)) {
+        writer.write(post);
+        records++;
+        if (records % batchSize == 0) {
+          checkpoint.save(records, writer.sync(),
+              new Document("_id", post.get("_id")).toJson());
+          if (System.nanoTime() - lastReport > REPORT_INTERVAL_NANOS) {
+            lastReport = System.nanoTime();
+            report(records - startRecords, start);
+          }
+        }
+      }
+      writer.sync();
+    }
+    checkpoint.delete();
+    report(records - startRecords, start);
+    return records;
+  }
+
+  private static void report(long records, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("Exported %d posts in %.1fs (%.0f/s)", records, seconds,
+        records / Math.max(seconds, 1e-3)));
+  }
+}
@@ -0,0 +1,178 @@
+package course.dao;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// a file of posts, read and written one document at a time. files ending in .bson hold
+// concatenated bson documents (what mongodump writes), anything else newline delimited strict
+// extended json, one document per line. both sides track the byte offset after the last whole
+// document so an interrupted transfer can pick up from there
+public final class PostFile {
+  private static final DocumentCodec CODEC = new DocumentCodec();
+  // a little above mongod's 16MB document limit
+  private static final int MAX_DOCUMENT_BYTES = 17 * 1024 * 1024;
+
+  private PostFile() {
+    throw new UnsupportedOperationException();
+  }
+
+  static boolean isBson(Path file) {
+    return file.getFileName().toString().endsWith(".bson");
+  }
+
+  public static final class Reader implements Closeable {
+    private final InputStream in;
+    private final boolean bson;
+    private byte[] buffer = new byte[8192];
+    private long offset;
+
+    public Reader(Path file, long offset) throws IOException {
+      this.in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+      this.bson = isBson(file);
+      this.offset = offset;
+      long skipped = 0;
+      while (skipped < offset) {
+        long step = in.skip(offset - skipped);
+        if (step <= 0) {
+          throw new EOFException(file + " is shorter than the checkpoint offset " + offset);
+        }
+        skipped += step;
+      }
+    }
+
+    // the next document, null at the end of the file. blank json lines are skipped
+    public Document next() throws IOException {
+      return bson ? nextBson() : nextJson();
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    private Document nextBson() throws IOException {
+      int first = in.read();
+      if (first < 0) {
+        return null;
+      }
+      ensureCapacity(4);
+      buffer[0] = (byte) first;
+      readFully(buffer, 1, 3);
+      int length = ByteBuffer.wrap(buffer, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+      if (length < 5 || length > MAX_DOCUMENT_BYTES) {
+        throw new IOException("Invalid bson document length " + length + " at offset " + offset);
+      }
+      ensureCapacity(length);
+      readFully(buffer, 4, length - 4);
+      offset += length;
+      return CODEC.decode(new BsonBinaryReader(ByteBuffer.wrap(buffer, 0, length)),
+          DecoderContext.builder().build());
+    }
+
+    private Document nextJson() throws IOException {
+      while (true) {
+        int length = 0;
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+          ensureCapacity(length + 1);
+          buffer[length++] = (byte) b;
+        }
+        if (b < 0 && length == 0) {
+          return null;
+        }
+        offset += length + (b < 0 ? 0 : 1);
+        String line = new String(buffer, 0, length, StandardCharsets.UTF_8).trim();
+        if (!line.isEmpty()) {
+          return Document.parse(line);
+        }
+      }
+    }
+
+    private void readFully(byte[] target, int from, int length) throws IOException {
+      int read = 0;
+      while (read < length) {
+        int step = in.read(target, from + read, length - read);
+        if (step < 0) {
+          throw new EOFException("Truncated bson document at offset " + offset);
+        }
+        read += step;
+      }
+    }
+
+    private void ensureCapacity(int length) {
+      if (buffer.length < length) {
+        buffer = Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  public static final class Writer implements Closeable {
+    private final FileOutputStream file;
+    private final OutputStream out;
+    private final boolean bson;
+    private long offset;
+
+    // appends after offset, anything the file holds past it (a half written document) is cut off
+    public Writer(Path path, long offset) throws IOException {
+      this.file = new FileOutputStream(path.toFile(), true);
+      FileChannel channel = file.getChannel();
+      if (channel.size() > offset) {
+        channel.truncate(offset);
+      }
+      this.out = new BufferedOutputStream(file, 64 * 1024);
+      this.bson = isBson(path);
+      this.offset = offset;
+    }
+
+    public void write(Document document) throws IOException {
+      byte[] bytes;
+      if (bson) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+        bytes = buffer.toByteArray();
+      } else {
+        bytes = (document.toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+      }
+      out.write(bytes);
+      offset += bytes.length;
+    }
+
+    // forces everything written so far to disk and returns the offset it reaches, a checkpoint
+    // must never point past data that could still be lost
+    public long sync() throws IOException {
+      out.flush();
+      file.getFD().sync();
+      return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
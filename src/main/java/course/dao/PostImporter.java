@@ -0,0 +1,264 @@
+package course.dao;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import course.util.PermalinkUtil;
+import course.util.TagsUtil;
+import course.util.TextUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Projections.slice;
+
+// loads posts from a PostFile in unordered insertMany batches. records get their tags and
+// permalink the way addPost does it: tags (a list or a comma separated string) go through
+// TagsUtil, a missing permalink is the slugged title and a taken one gets a _2, _3, ... suffix.
+// records whose _id is already in the collection are skipped, and records without an ObjectId
+// _id get one hashed from their content, so importing the same file into the same database
+// again adds nothing. text is escaped like the forms escape it unless the file says it already
+// is, as this blog's own exports are. a checkpoint after every batch lets a failed import resume
+public class PostImporter {
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final long REPORT_INTERVAL_NANOS = 5000000000L;
+
+  private final MongoCollection<Document> postsCollection;
+  private final int batchSize;
+  private final boolean escaped;
+  private BucketedCommentDAO bucketedComments;
+  private long imported;
+  private long skipped;
+  private long renamed;
+  private long rejected;
+
+  // escaped means the file's text was stored by this blog, html escaped and with <p> breaks
+  public PostImporter(final MongoDatabase blogDatabase, int batchSize, boolean escaped) {
+    postsCollection = blogDatabase.getCollection("posts");
+    this.batchSize = batchSize;
+    this.escaped = escaped;
+  }
+
+  // imported comments go to buckets instead of the post, where the blog would not show them
+  public void enableBucketedComments(BucketedCommentDAO bucketedCommentDAO) {
+    bucketedComments = bucketedCommentDAO;
+  }
+
+  public void importFrom(Path file) throws IOException {
+    TransferCheckpoint checkpoint = TransferCheckpoint.load(file);
+    long records = checkpoint.getRecords();
+    if (checkpoint.isResumed()) {
+      System.out.println("Resuming import of " + file + " after " + records + " records");
+    }
+
+    long start = System.nanoTime();
+    long lastReport = start;
+    long startRecords = records;
+    try (PostFile.Reader reader = new PostFile.Reader(file, checkpoint.getOffset())) {
+      List<Document> batch = new ArrayList<>(batchSize);
+      Document record;
+      while ((record = reader.next()) != null) {
+        records++;
+        Document post = toPost(record, escaped);
+        if (post == null) {
+          rejected++;
+        } else {
+          batch.add(post);
+        }
+        if (batch.size() == batchSize) {
+          insert(batch);
+          batch.clear();
+          checkpoint.save(records, reader.getOffset(), null);
+          if (System.nanoTime() - lastReport > REPORT_INTERVAL_NANOS) {
+            lastReport = System.nanoTime();
+            report(records - startRecords, start);
+          }
+        }
+      }
+      insert(batch);
+    }
+    checkpoint.delete();
+    report(records - startRecords, start);
+  }
+
+  public long getImported() {
+    return imported;
+  }
+
+  private void insert(List<Document> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    // running nodes find the new posts by this, their dates are the original ones
+    Date now = new Date();
+    List<List<Document>> comments = new ArrayList<>(batch.size());
+    for (Document post : batch) {
+      post.put("inserted", now);
+      comments.add(bucketedComments == null ? null : BucketedCommentDAO.comments(post));
+      if (bucketedComments != null) {
+        post.remove("comments");
+      }
+    }
+    Set<Integer> failed = new HashSet<>();
+    try {
+      postsCollection.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failed.add(error.getIndex());
+        Document post = batch.get(error.getIndex());
+        if (!error.getCategory().equals(ErrorCategory.DUPLICATE_KEY)) {
+          System.out.println("Could not import " + post.get("permalink") + ": " + error.getMessage());
+          rejected++;
+          continue;
+        }
+        Document existing = findExisting(post.get("_id"));
+        if (existing != null) {
+          // imported by an earlier run, which may have stopped before writing the comments
+          skipped++;
+          List<Document> embedded = BucketedCommentDAO.comments(existing);
+          if (bucketedComments != null && (embedded == null || embedded.isEmpty())
+              && bucketedComments.countComments(existing.getString("permalink")) == 0) {
+            writeComments(existing.getString("permalink"), comments.get(error.getIndex()));
+          }
+        } else {
+          BlogPostDAO.insertWithUniquePermalink(postsCollection, post);
+          failed.remove(error.getIndex());
+          renamed++;
+        }
+      }
+    }
+    imported += batch.size() - failed.size();
+    for (int i = 0; i < batch.size(); i++) {
+      if (!failed.contains(i)) {
+        writeComments(batch.get(i).getString("permalink"), comments.get(i));
+      }
+    }
+  }
+
+  private void writeComments(String permalink, List<Document> comments) {
+    if (comments != null && !comments.isEmpty()) {
+      bucketedComments.replaceComments(permalink, comments);
+    }
+  }
+
+  // the driver doesn't say which unique index a bulk insert collided with, and the message holds
+  // the duplicate value, which may well contain "_id_". the only other unique index is on
+  // permalink, so it was the _id if a post with it is there
+  private Document findExisting(Object id) {
+    return postsCollection.find(eq("_id", id))
+        .projection(fields(include("permalink"), slice("comments", 1))).first();
+  }
+
+  // the post addPost would have stored for the record, null if it has no title. unless escaped,
+  // text goes through the same escaping as the new post and comment forms
+  static Document toPost(Document record, boolean escaped) {
+    Object title = record.get("title");
+    if (!(title instanceof String) || ((String) title).isEmpty()) {
+      return null;
+    }
+    String safeTitle = text((String) title, escaped);
+
+    Object tags = record.get("tags");
+    String tagInput = tags instanceof List ? joinTags((List<?>) tags)
+        : tags instanceof String ? (String) tags : "";
+    Object permalink = record.get("permalink");
+    List<Document> comments = new ArrayList<>();
+    if (record.get("comments") instanceof List) {
+      for (Object comment : (List<?>) record.get("comments")) {
+        Document stored = toComment(comment, escaped);
+        if (stored != null) {
+          comments.add(stored);
+        }
+      }
+    }
+    Object date = record.get("date");
+    Date posted = date instanceof Date ? (Date) date : new Date();
+    Object body = record.get("body");
+    String safeBody = !(body instanceof String) ? ""
+        : escaped ? (String) body : TextUtil.paragraphs(text((String) body, false));
+
+    // pages are cursored by ObjectId, any other _id is replaced like a missing one
+    Object id = record.get("_id") instanceof ObjectId ? record.get("_id") : contentId(record);
+    return new Document("_id", id).append("title", safeTitle)
+        .append("author", record.get("author") instanceof String
+            ? text((String) record.get("author"), escaped) : "import")
+        .append("body", safeBody)
+        // whatever the file says, a permalink goes into urls and attributes as is
+        .append("permalink", PermalinkUtil.slugify(permalink instanceof String
+            && !((String) permalink).isEmpty() ? (String) permalink : safeTitle))
+        .append("tags", TagsUtil.extractTags(text(tagInput, escaped)))
+        .append("comments", comments)
+        .append("comment_count", comments.size())
+        .append("date", posted)
+        // a change as far as incremental exports are concerned, whenever it was first posted
+        .append("last_modified", new Date())
+        .append("version", 1);
+  }
+
+  // the comment /newcomment would have stored, null if the record isn't one
+  private static Document toComment(Object record, boolean escaped) {
+    if (!(record instanceof Document)) {
+      return null;
+    }
+    Document comment = (Document) record;
+    Object body = comment.get("body");
+    if (!(body instanceof String) || ((String) body).isEmpty()) {
+      return null;
+    }
+    Object author = comment.get("author");
+    Object likes = comment.get("num_likes");
+    Document stored = new Document("_id",
+        comment.get("_id") instanceof ObjectId ? comment.get("_id") : new ObjectId())
+        .append("author", author instanceof String ? text((String) author, escaped) : "")
+        .append("body", text((String) body, escaped))
+        .append("num_likes", likes instanceof Number ? ((Number) likes).intValue() : 0);
+    if (comment.get("email") instanceof String && !((String) comment.get("email")).isEmpty()) {
+      stored.append("email", text((String) comment.get("email"), escaped));
+    }
+    return stored;
+  }
+
+  private static String text(String text, boolean escaped) {
+    return escaped ? text : StringEscapeUtils.escapeHtml4(text);
+  }
+
+  // the same record always gets the same _id. an ObjectId, so the post can be paged past like any
+  // other
+  static ObjectId contentId(Document record) {
+    return new ObjectId(Arrays.copyOf(DigestUtils.sha1(record.toJson()), 12));
+  }
+
+  private static String joinTags(List<?> tags) {
+    StringBuilder joined = new StringBuilder();
+    for (Object tag : tags) {
+      if (joined.length() > 0) {
+        joined.append(',');
+      }
+      joined.append(tag);
+    }
+    return joined.toString();
+  }
+
+  private void report(long records, long start) {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("Read %d records in %.1fs (%.0f/s): %d imported, %d renamed, "
+            + "%d already there, %d rejected", records, seconds, records / Math.max(seconds, 1e-3),
+        imported, renamed, skipped, rejected));
+  }
+}
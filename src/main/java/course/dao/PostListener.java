@@ -0,0 +1,16 @@
+package course.dao;
+
+import java.util.List;
+
+// notified by BlogPostDAO after a write has been applied to the posts collection
+public interface PostListener {
+
+  default void postAdded(String permalink, List<String> tags) {
+  }
+
+  default void commentAdded(String permalink, List<String> tags) {
+  }
+
+  default void commentLiked(String permalink) {
+  }
+}
@@ -2,61 +2,165 @@ package course.dao;
 
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
-import sun.misc.BASE64Encoder;
+import com.mongodb.client.model.IndexOptions;
+import course.cache.ExpiringCache;
+import course.metrics.Metrics;
 
+import org.apache.commons.codec.binary.Base64;
 import org.bson.Document;
 
 
 import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import static com.mongodb.client.model.Filters.eq;
 
-public class SessionDAO {
+public class SessionDAO implements SessionStore, SessionListener, IndexedDAO {
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final long DEFAULT_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  public static final long DEFAULT_SESSION_TTL_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+  // how long an ended session is remembered, far longer than any lookup that read it before the
+  // delete can take to cache it
+  private static final long ENDED_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // SecureRandom is thread safe and expensive to seed, so it is shared by all sessions
+  private static final SecureRandom GENERATOR = new SecureRandom();
+
   private final MongoCollection<Document> sessionsCollection;
+  // session id -> username, so active sessions don't cost a round trip on every page hit
+  private final ExpiringCache<String, String> sessionCache;
+  // sessions ended lately, checked after every cache put so a lookup that read the session
+  // before it was deleted can't cache it again afterwards
+  private final ExpiringCache<String, Boolean> endedSessions;
+  private final long sessionTtlSeconds;
+  private final List<SessionListener> listeners = new CopyOnWriteArrayList<>();
 
   public SessionDAO(final MongoDatabase blogDatabase) {
+    this(blogDatabase, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL_MILLIS, DEFAULT_SESSION_TTL_SECONDS);
+  }
+
+  public SessionDAO(final MongoDatabase blogDatabase, int cacheSize, long cacheTtlMillis,
+      long sessionTtlSeconds) {
     sessionsCollection = blogDatabase.getCollection("sessions");
+    sessionCache = new ExpiringCache<>(cacheSize, Math.min(cacheTtlMillis,
+        TimeUnit.SECONDS.toMillis(sessionTtlSeconds)));
+    endedSessions = new ExpiringCache<>(cacheSize, ENDED_TTL_MILLIS);
+    this.sessionTtlSeconds = sessionTtlSeconds;
+  }
+
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    String sessions = sessionsCollection.getNamespace().getCollectionName();
+    // mongod removes sessions once they are older than the ttl
+    indexManager.index(sessions, new Document("created", 1),
+        new IndexOptions().expireAfter(sessionTtlSeconds, TimeUnit.SECONDS));
+    indexManager.query(sessions, "getSession", eq("_id", "session"), null);
   }
 
 
+  public void addListener(SessionListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
   public String findUserNameBySessionId(String sessionId) {
+    if (sessionId == null) {
+      return null;
+    }
+
+    String username = sessionCache.get(sessionId);
+    if (username != null) {
+      return username;
+    }
+
     Document session = getSession(sessionId);
 
     if (session == null) {
       return null;
     } else {
-      return session.get("username").toString();
+      return cache(sessionId, session.get("username").toString());
     }
   }
 
 
   // starts a new session in the sessions table
+  @Override
   public String startSession(String username) {
 
     // get 32 byte random number. that's a lot of bits.
-    SecureRandom generator = new SecureRandom();
     byte randomBytes[] = new byte[32];
-    generator.nextBytes(randomBytes);
-
-    BASE64Encoder encoder = new BASE64Encoder();
+    GENERATOR.nextBytes(randomBytes);
 
-    String sessionID = encoder.encode(randomBytes);
+    String sessionID = Base64.encodeBase64String(randomBytes);
 
     // build the BSON object
-    Document session = new Document("username", username).append("_id", sessionID);
-
-    sessionsCollection.insertOne(session);
+    Document session = new Document("username", username).append("_id", sessionID)
+        .append("created", new Date());
+
+    long start = System.nanoTime();
+    try {
+      sessionsCollection.insertOne(session);
+    } finally {
+      Metrics.recordDao("startSession", start);
+    }
+    sessionCache.put(sessionID, username);
 
     return session.getString("_id");
   }
 
   // ends the session by deleting it from the sesisons table
+  @Override
   public void endSession(String sessionID) {
-    sessionsCollection.deleteOne(eq("_id", sessionID));
+    long start = System.nanoTime();
+    try {
+      sessionsCollection.deleteOne(eq("_id", sessionID));
+    } finally {
+      Metrics.recordDao("endSession", start);
+    }
+    forget(sessionID);
+    for (SessionListener listener : listeners) {
+      listener.sessionEnded(sessionID);
+    }
+  }
+
+  // a session ended on another node, only the cached copy is left to drop
+  @Override
+  public void sessionEnded(String sessionId) {
+    forget(sessionId);
+  }
+
+  // caches a session read from mongo, returns null instead if it has ended since. forget marks
+  // the session before it invalidates, so either that invalidate comes after this put or the
+  // mark is already visible here
+  String cache(String sessionId, String username) {
+    sessionCache.put(sessionId, username);
+    if (endedSessions.get(sessionId) != null) {
+      sessionCache.invalidate(sessionId);
+      return null;
+    }
+    return username;
+  }
+
+  private void forget(String sessionId) {
+    endedSessions.put(sessionId, Boolean.TRUE);
+    sessionCache.invalidate(sessionId);
   }
 
   // retrieves the session from the sessions table
   public Document getSession(String sessionID) {
-    return sessionsCollection.find(eq("_id", sessionID)).first();
+    long start = System.nanoTime();
+    try {
+      return sessionsCollection.find(eq("_id", sessionID)).first();
+    } finally {
+      Metrics.recordDao("getSession", start);
+    }
+  }
+
+  public ExpiringCache<String, String> getSessionCache() {
+    return sessionCache;
   }
 }
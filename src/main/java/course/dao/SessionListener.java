@@ -0,0 +1,7 @@
+package course.dao;
+
+// notified by a SessionStore after a session has been ended
+public interface SessionListener {
+
+  void sessionEnded(String sessionId);
+}
@@ -0,0 +1,21 @@
+package course.dao;
+
+import java.util.concurrent.CompletableFuture;
+
+// where logged in sessions live, either the sessions collection or signed cookies
+public interface SessionStore {
+
+  // returns the session id to hand to the browser in the session cookie
+  String startSession(String username);
+
+  // returns null if the session is unknown, expired or ended
+  String findUserNameBySessionId(String sessionId);
+
+  // lets a request start the session lookup and do other work while it runs, stores that
+  // can't look up sessions asynchronously simply answer right away
+  default CompletableFuture<String> findUserNameBySessionIdAsync(String sessionId) {
+    return CompletableFuture.completedFuture(findUserNameBySessionId(sessionId));
+  }
+
+  void endSession(String sessionId);
+}
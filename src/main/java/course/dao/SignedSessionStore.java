@@ -0,0 +1,157 @@
+package course.dao;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
+import course.metrics.Metrics;
+import course.util.SessionUtil;
+import course.util.SessionUtil.SignedSession;
+import org.bson.Document;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+
+// stateless sessions: the cookie itself carries the username and expiry, signed with a secret
+// shared by every node, so checking a session never touches the database. logging out revokes
+// the session until its token would have expired anyway. revocations are checked in memory and
+// also written to revoked_sessions, which a starting node loads so it doesn't accept tokens
+// that were logged out before it came up
+public class SignedSessionStore implements SessionStore, SessionListener, IndexedDAO {
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final MongoCollection<Document> revokedCollection;
+  private final SecretKeySpec key;
+  private final long ttlMillis;
+  // Mac instances are not thread safe
+  private final ThreadLocal<Mac> macs;
+  // signature of a revoked token -> the time it expires and can be forgotten
+  private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+  private final List<SessionListener> listeners = new CopyOnWriteArrayList<>();
+  private volatile long nextPurge;
+
+  public SignedSessionStore(final MongoDatabase blogDatabase, byte[] secret, long ttlSeconds) {
+    if (secret.length < 32) {
+      throw new IllegalArgumentException("session secret must be at least 32 bytes");
+    }
+    revokedCollection = blogDatabase.getCollection("revoked_sessions");
+    key = new SecretKeySpec(secret, ALGORITHM);
+    ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    macs = ThreadLocal.withInitial(this::newMac);
+    // fail at startup rather than on the first login if the JVM lacks the algorithm
+    newMac();
+  }
+
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    String revokedSessions = revokedCollection.getNamespace().getCollectionName();
+    // mongod drops a revocation once the token it revokes has expired
+    indexManager.index(revokedSessions, new Document("expires", 1),
+        new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+    indexManager.query(revokedSessions, "loadRevocations", gt("expires", new Date()), null);
+  }
+
+  // reads the logouts of sessions that are still valid, returns how many there are
+  public int loadRevocations() {
+    long start = System.nanoTime();
+    try {
+      for (Document revocation : revokedCollection.find(gt("expires", new Date()))) {
+        revoked.put(revocation.getString("_id"), revocation.getDate("expires").getTime());
+      }
+    } finally {
+      Metrics.recordDao("loadRevocations", start);
+    }
+    return revoked.size();
+  }
+
+  public void addListener(SessionListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public String startSession(String username) {
+    return SessionUtil.createSignedSessionToken(username, System.currentTimeMillis() + ttlMillis,
+        macs.get());
+  }
+
+  @Override
+  public String findUserNameBySessionId(String sessionId) {
+    SignedSession session = verify(sessionId);
+    if (session == null || revoked.containsKey(session.getSignature())) {
+      return null;
+    }
+    return session.getUsername();
+  }
+
+  // tokens that don't verify are ignored, so logging out with made up cookies doesn't fill the
+  // revocation list or the invalidation bus
+  @Override
+  public void endSession(String sessionId) {
+    SignedSession session = verify(sessionId);
+    if (session == null) {
+      return;
+    }
+    revoke(session);
+    long start = System.nanoTime();
+    try {
+      revokedCollection.updateOne(eq("_id", session.getSignature()),
+          new Document("$set", new Document("expires", new Date(session.getExpiresAtMillis()))),
+          new UpdateOptions().upsert(true));
+    } catch (MongoException e) {
+      // this node and the bus still know, only a node started later would miss it
+      System.out.println("Could not persist a logout: " + e.getMessage());
+    } finally {
+      Metrics.recordDao("revokeSession", start);
+    }
+    for (SessionListener listener : listeners) {
+      listener.sessionEnded(sessionId);
+    }
+  }
+
+  // a logout on another node, which already persisted it
+  @Override
+  public void sessionEnded(String sessionId) {
+    SignedSession session = verify(sessionId);
+    if (session != null) {
+      revoke(session);
+    }
+  }
+
+  private SignedSession verify(String sessionId) {
+    return SessionUtil.parseSignedSessionToken(sessionId, macs.get(), System.currentTimeMillis());
+  }
+
+  private void revoke(SignedSession session) {
+    long now = System.currentTimeMillis();
+    revoked.put(session.getSignature(), session.getExpiresAtMillis());
+    if (now >= nextPurge) {
+      nextPurge = now + TimeUnit.MINUTES.toMillis(1);
+      revoked.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+  }
+
+  public int getRevokedCount() {
+    return revoked.size();
+  }
+
+  private Mac newMac() {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(ALGORITHM + " is not available", e);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package course.dao;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import course.metrics.Metrics;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Sorts.descending;
+
+// per-tag post counts and the date a tag was last used, one document per tag in tag_stats:
+// { _id: tag, count: n, last_used: date }. kept current by addPost through the listener, pages
+// read an in-memory snapshot that a background thread refreshes
+public class TagStatsDAO implements IndexedDAO, PostListener {
+  public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 30000;
+
+  private final MongoCollection<Document> tagStatsCollection;
+  private final MongoCollection<Document> postsCollection;
+  private final ScheduledExecutorService refresher;
+  private final AtomicBoolean refreshQueued = new AtomicBoolean();
+  private volatile List<Document> snapshot = Collections.emptyList();
+
+  public TagStatsDAO(final MongoDatabase blogDatabase, long refreshIntervalMillis) {
+    tagStatsCollection = blogDatabase.getCollection("tag_stats");
+    postsCollection = blogDatabase.getCollection("posts");
+    refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "tag-stats-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refresher.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    String tagStats = tagStatsCollection.getNamespace().getCollectionName();
+    indexManager.index(tagStats, new Document("count", -1));
+    indexManager.query(tagStats, "refresh", new Document(), descending("count"));
+  }
+
+  @Override
+  public void postAdded(String permalink, List<String> tags) {
+    if (tags == null || tags.isEmpty()) {
+      return;
+    }
+    Date now = new Date();
+    List<WriteModel<Document>> updates = new ArrayList<>(tags.size());
+    for (String tag : tags) {
+      updates.add(new UpdateOneModel<>(eq("_id", tag),
+          new Document("$inc", new Document("count", 1))
+              .append("$max", new Document("last_used", now)),
+          new UpdateOptions().upsert(true)));
+    }
+
+    long start = System.nanoTime();
+    try {
+      tagStatsCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    } catch (MongoException e) {
+      // the post is already written, a rebuild brings the counts back in line
+      System.out.println("Could not update tag stats for " + permalink + ": " + e.getMessage());
+    } finally {
+      Metrics.recordDao("updateTagStats", start);
+    }
+
+    // show the new counts soon rather than at the next scheduled refresh
+    if (refreshQueued.compareAndSet(false, true)) {
+      refresher.execute(this::refresh);
+    }
+  }
+
+  // tags ordered by how many posts use them, as of the last refresh
+  public List<Document> getTags() {
+    return snapshot;
+  }
+
+  public boolean isEmpty() {
+    return tagStatsCollection.find().first() == null;
+  }
+
+  // recomputes every count from the posts and replaces tag_stats in one pipeline, for repair
+  public void rebuild() {
+    long start = System.nanoTime();
+    try {
+      // $out only runs once the result is iterated
+      postsCollection.aggregate(Arrays.asList(
+          new Document("$unwind", "$tags"),
+          new Document("$group", new Document("_id", "$tags")
+              .append("count", new Document("$sum", 1))
+              .append("last_used", new Document("$max", "$date"))),
+          new Document("$out", tagStatsCollection.getNamespace().getCollectionName()))).first();
+    } finally {
+      Metrics.recordDao("rebuildTagStats", start);
+    }
+    refresh();
+  }
+
+  public void shutdown() {
+    refresher.shutdownNow();
+  }
+
+  void refresh() {
+    refreshQueued.set(false);
+    long start = System.nanoTime();
+    try {
+      snapshot = Collections.unmodifiableList(
+          tagStatsCollection.find().sort(descending("count")).into(new ArrayList<>()));
+    } catch (MongoException e) {
+      System.out.println("Tag stats refresh failed, keeping the old snapshot: " + e.getMessage());
+    } finally {
+      Metrics.recordDao("refreshTagStats", start);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package course.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+// progress of an import or export, kept next to the file being read or written as
+// <file>.checkpoint and replaced atomically, so it always describes a finished batch
+final class TransferCheckpoint {
+  private final Path path;
+  private long records;
+  private long offset;
+  private String lastId;
+
+  private TransferCheckpoint(Path path) {
+    this.path = path;
+  }
+
+  static TransferCheckpoint load(Path file) throws IOException {
+    TransferCheckpoint checkpoint =
+        new TransferCheckpoint(file.resolveSibling(file.getFileName() + ".checkpoint"));
+    if (Files.exists(checkpoint.path)) {
+      Properties properties = new Properties();
+      try (InputStream in = Files.newInputStream(checkpoint.path)) {
+        properties.load(in);
+      }
+      checkpoint.records = Long.parseLong(properties.getProperty("records", "0"));
+      checkpoint.offset = Long.parseLong(properties.getProperty("offset", "0"));
+      checkpoint.lastId = properties.getProperty("lastId");
+    }
+    return checkpoint;
+  }
+
+  void save(long records, long offset, String lastId) throws IOException {
+    this.records = records;
+    this.offset = offset;
+    this.lastId = lastId;
+
+    Properties properties = new Properties();
+    properties.setProperty("records", Long.toString(records));
+    properties.setProperty("offset", Long.toString(offset));
+    if (lastId != null) {
+      properties.setProperty("lastId", lastId);
+    }
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temporary)) {
+      properties.store(out, null);
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  void delete() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  boolean isResumed() {
+    return records > 0 || offset > 0;
+  }
+
+  long getRecords() {
+    return records;
+  }
+
+  long getOffset() {
+    return offset;
+  }
+
+  String getLastId() {
+    return lastId;
+  }
+}
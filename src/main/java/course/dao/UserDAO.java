@@ -4,29 +4,41 @@ import com.mongodb.ErrorCategory;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoCollection;
-import sun.misc.BASE64Encoder;
+import course.metrics.Metrics;
+import course.security.PasswordService;
 
 import org.bson.Document;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 
-public class UserDAO {
+public class UserDAO implements IndexedDAO {
   private final MongoCollection<Document> usersCollection;
-  private final ThreadLocal<Random> random = new ThreadLocal<Random>();
+  private final PasswordService passwordService;
 
   public UserDAO(final MongoDatabase blogDatabase) {
+    this(blogDatabase, PasswordService.withDefaults());
+  }
+
+  public UserDAO(final MongoDatabase blogDatabase, PasswordService passwordService) {
     usersCollection = blogDatabase.getCollection("users");
+    this.passwordService = passwordService;
+  }
+
+  @Override
+  public void declareIndexes(IndexManager indexManager) {
+    // users are looked up by _id only, which is always indexed
+    String users = usersCollection.getNamespace().getCollectionName();
+    indexManager.query(users, "validateLogin", eq("_id", "username"), null);
   }
 
-  // validates that username is unique and insert into db
+  // validates that username is unique and insert into db. throws RejectedExecutionException when
+  // too many passwords are being hashed already
   public boolean addUser(String username, String password, String email) {
 
-    String passwordHash = makePasswordHash(password, Integer.toString(getRandom().nextInt()));
+    String passwordHash = passwordService.hash(password);
 
     Document user = new Document();
 
@@ -37,6 +49,7 @@ public class UserDAO {
       user.append("email", email);
     }
 
+    long start = System.nanoTime();
     try {
       usersCollection.insertOne(user);
       return true;
@@ -46,52 +59,56 @@ public class UserDAO {
         return false;
       }
       throw e;
+    } finally {
+      Metrics.recordDao("addUser", start);
     }
   }
 
+  // the user document if the password matches. passwords stored by an older hasher or at an
+  // older cost are rehashed on the way. throws RejectedExecutionException like addUser
   public Document validateLogin(String username, String password) {
     Document user;
 
-    user = usersCollection.find(eq("_id", username)).first();
+    long start = System.nanoTime();
+    try {
+      user = usersCollection.find(eq("_id", username)).first();
+    } finally {
+      Metrics.recordDao("validateLogin", start);
+    }
 
     if (user == null) {
       return null;
     }
 
-    String hashedAndSalted = user.get("password").toString();
-
-    String salt = hashedAndSalted.split(",")[1];
-
-    if (!hashedAndSalted.equals(makePasswordHash(password, salt))) {
+    String stored = user.get("password").toString();
+    if (!passwordService.verify(password, stored)) {
       System.out.println("Submitted password is not a match");
       return null;
     }
 
+    if (passwordService.needsRehash(stored)) {
+      rehash(username, password, stored);
+    }
+
     return user;
   }
 
-
-  private String makePasswordHash(String password, String salt) {
+  private void rehash(String username, String password, String stored) {
+    String rehashed;
     try {
-      String saltedAndHashed = password + "," + salt;
-      MessageDigest digest = MessageDigest.getInstance("MD5");
-      digest.update(saltedAndHashed.getBytes());
-      BASE64Encoder encoder = new BASE64Encoder();
-      byte hashedBytes[] = (new String(digest.digest(), "UTF-8")).getBytes();
-      return encoder.encode(hashedBytes) + "," + salt;
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("MD5 is not available", e);
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+      rehashed = passwordService.hash(password);
+    } catch (RejectedExecutionException e) {
+      // the login itself succeeded, the upgrade can wait for the next one
+      return;
     }
-  }
 
-  private Random getRandom() {
-    Random result = random.get();
-    if (result == null) {
-      result = new Random();
-      random.set(result);
+    long start = System.nanoTime();
+    try {
+      // only replaces the hash that was verified, a password changed meanwhile stays
+      usersCollection.updateOne(and(eq("_id", username), eq("password", stored)),
+          new Document("$set", new Document("password", rehashed)));
+    } finally {
+      Metrics.recordDao("rehashPassword", start);
     }
-    return result;
   }
 }
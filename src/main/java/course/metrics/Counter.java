@@ -0,0 +1,15 @@
+package course.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter {
+  private final LongAdder count = new LongAdder();
+
+  public void increment() {
+    count.increment();
+  }
+
+  public long get() {
+    return count.sum();
+  }
+}
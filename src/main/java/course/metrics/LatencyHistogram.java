@@ -0,0 +1,86 @@
+package course.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// latency histogram over log-scaled buckets from 50us to 30s, cheap enough to record on every
+// request from any number of threads
+public class LatencyHistogram {
+  // upper bounds in seconds, as exported in the prometheus "le" label
+  static final double[] BOUNDS = {0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+      0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+  private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  // one more bucket than bounds for everything slower than the last one
+  private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void recordNanos(long nanos) {
+    buckets[bucketOf(nanos)].increment();
+    count.increment();
+    sumNanos.add(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getSumSeconds() {
+    return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+  // cumulative count of recordings at or below each bound, the last entry is the total
+  public long[] cumulativeCounts() {
+    long[] cumulative = new long[buckets.length];
+    long running = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      running += buckets[i].sum();
+      cumulative[i] = running;
+    }
+    return cumulative;
+  }
+
+  // upper bound of the bucket holding the given percentile, e.g. 99.0 for p99
+  public double percentileUpperBoundSeconds(double percentile) {
+    long[] cumulative = cumulativeCounts();
+    long total = cumulative[cumulative.length - 1];
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    for (int i = 0; i < BOUNDS.length; i++) {
+      if (cumulative[i] >= rank) {
+        return BOUNDS[i];
+      }
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  private static int bucketOf(long nanos) {
+    int low = 0;
+    int high = BOUNDS_NANOS.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (BOUNDS_NANOS[middle] < nanos) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,176 @@
+package course.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// process wide registry of counters, gauges and latency histograms, scraped by /metrics in the
+// prometheus text format. also keeps per-request mongo and template time for the current thread
+public final class Metrics {
+
+  private static final Map<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+  private static final ThreadLocal<RequestTimings> REQUEST = new ThreadLocal<>();
+
+  private Metrics() {
+    throw new UnsupportedOperationException();
+  }
+
+  // labels are name/value pairs, e.g. counter("blog_requests_total", "...", "route", "/")
+  public static Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, "counter")
+        .metrics.computeIfAbsent(labelText(labels), key -> new Counter());
+  }
+
+  public static LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) family(name, help, "histogram")
+        .metrics.computeIfAbsent(labelText(labels), key -> new LatencyHistogram());
+  }
+
+  public static void gauge(String name, String help, Supplier<? extends Number> value,
+      String... labels) {
+    family(name, help, "gauge").metrics.put(labelText(labels), value);
+  }
+
+  // a running total kept by someone else, read on every scrape. name it *_total like the others
+  public static void counter(String name, String help, Supplier<? extends Number> value,
+      String... labels) {
+    family(name, help, "counter").metrics.put(labelText(labels), value);
+  }
+
+  // starts collecting mongo and template time for the request handled on this thread
+  public static RequestTimings startRequest() {
+    RequestTimings timings = new RequestTimings();
+    REQUEST.set(timings);
+    return timings;
+  }
+
+  // the timings of the request handled on this thread, null outside a request. async DAOs take
+  // it before handing off to the driver, whose callbacks run on threads that don't know the request
+  public static RequestTimings currentRequest() {
+    return REQUEST.get();
+  }
+
+  public static void endRequest() {
+    REQUEST.remove();
+  }
+
+  // called by the DAOs with the System.nanoTime() taken before talking to mongo
+  public static void recordDao(String operation, long startNanos) {
+    recordDao(operation, startNanos, REQUEST.get());
+  }
+
+  // for work finishing on another thread, with the timings from currentRequest() on the caller
+  public static void recordDao(String operation, long startNanos, RequestTimings timings) {
+    long elapsed = System.nanoTime() - startNanos;
+    histogram("blog_dao_duration_seconds", "Time spent in a DAO method, mostly waiting on mongo",
+        "operation", operation).recordNanos(elapsed);
+    if (timings != null) {
+      timings.mongoNanos.addAndGet(elapsed);
+    }
+  }
+
+  public static void recordTemplate(long startNanos) {
+    RequestTimings timings = REQUEST.get();
+    if (timings != null) {
+      timings.templateNanos += System.nanoTime() - startNanos;
+    }
+  }
+
+  public static String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+        writeMetric(out, name, metric.getKey(), metric.getValue());
+      }
+    }
+    return out.toString();
+  }
+
+  private static void writeMetric(StringBuilder out, String name, String labels, Object metric) {
+    if (metric instanceof Counter) {
+      sample(out, name, labels, ((Counter) metric).get());
+    } else if (metric instanceof LatencyHistogram) {
+      LatencyHistogram histogram = (LatencyHistogram) metric;
+      long[] cumulative = histogram.cumulativeCounts();
+      for (int i = 0; i < cumulative.length; i++) {
+        String le = i < LatencyHistogram.BOUNDS.length ? format(LatencyHistogram.BOUNDS[i]) : "+Inf";
+        String bucketLabels = labels.isEmpty() ? "le=\"" + le + "\""
+            : labels + ",le=\"" + le + "\"";
+        sample(out, name + "_bucket", bucketLabels, cumulative[i]);
+      }
+      sample(out, name + "_sum", labels, histogram.getSumSeconds());
+      sample(out, name + "_count", labels, cumulative[cumulative.length - 1]);
+    } else {
+      // gauges and counters registered with a supplier, both only ever hold numbers
+      sample(out, name, labels, (Number) ((Supplier<?>) metric).get());
+    }
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, Number value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value instanceof Double || value instanceof Float
+        ? format(value.doubleValue()) : value.toString()).append('\n');
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%s", value);
+  }
+
+  private static Family family(String name, String help, String type) {
+    Family family = FAMILIES.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+    }
+    return family;
+  }
+
+  private static String labelText(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("labels must be name/value pairs");
+    }
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        text.append(',');
+      }
+      text.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+          .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return text.toString();
+  }
+
+  private static final class Family {
+    private final String help;
+    private final String type;
+    private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  public static final class RequestTimings {
+    // driver callbacks for the same request can finish on different threads at once
+    private final AtomicLong mongoNanos = new AtomicLong();
+    private long templateNanos;
+
+    public long getMongoNanos() {
+      return mongoNanos.get();
+    }
+
+    public long getTemplateNanos() {
+      return templateNanos;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package course.security;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+// the original <base64 md5>,<salt> format. only kept so existing users can still log in and get
+// rehashed, the encoding steps must stay exactly as they were for old hashes to match
+public class LegacyMd5PasswordHasher implements PasswordHasher {
+
+  @Override
+  public String hash(String password) {
+    return hash(password, Integer.toString(ThreadLocalRandom.current().nextInt()));
+  }
+
+  @Override
+  public boolean verify(String password, String stored) {
+    String salt = stored.split(",")[1];
+    return MessageDigest.isEqual(stored.getBytes(), hash(password, salt).getBytes());
+  }
+
+  @Override
+  public boolean recognizes(String stored) {
+    return stored.indexOf(',') > 0 && stored.indexOf('$') < 0;
+  }
+
+  @Override
+  public boolean needsRehash(String stored) {
+    return true;
+  }
+
+  private static String hash(String password, String salt) {
+    try {
+      String saltedAndHashed = password + "," + salt;
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      digest.update(saltedAndHashed.getBytes());
+      // at most 48 bytes, so sun.misc.BASE64Encoder never wrapped the line and the unchunked
+      // commons-codec output is identical
+      byte hashedBytes[] = (new String(digest.digest(), "UTF-8")).getBytes();
+      return Base64.encodeBase64String(hashedBytes) + "," + salt;
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("MD5 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("UTF-8 unavailable?  Not a chance", e);
+    }
+  }
+}
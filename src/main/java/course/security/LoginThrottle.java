@@ -0,0 +1,67 @@
+package course.security;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// fixed window attempt limits per username and per client address. a credential stuffing run
+// from one address hits the address limit, a guessing run against one user from many
+// addresses hits the username limit
+public class LoginThrottle {
+  public static final int DEFAULT_ATTEMPTS_PER_USERNAME = 5;
+  public static final int DEFAULT_ATTEMPTS_PER_ADDRESS = 20;
+  public static final long DEFAULT_WINDOW_MILLIS = 60000;
+
+  // beyond this many tracked keys expired windows are dropped, and everything if that's not enough
+  private static final int MAX_TRACKED = 100000;
+
+  private final Map<String, Window> windows = new ConcurrentHashMap<>();
+  private final int attemptsPerUsername;
+  private final int attemptsPerAddress;
+  private final long windowMillis;
+
+  public LoginThrottle(int attemptsPerUsername, int attemptsPerAddress, long windowMillis) {
+    this.attemptsPerUsername = attemptsPerUsername;
+    this.attemptsPerAddress = attemptsPerAddress;
+    this.windowMillis = windowMillis;
+  }
+
+  // counts the attempt and tells whether it may go ahead
+  public boolean tryAcquire(String username, String address) {
+    long now = System.currentTimeMillis();
+    if (windows.size() > MAX_TRACKED) {
+      windows.values().removeIf(window -> window.isOver(now, windowMillis));
+      if (windows.size() > MAX_TRACKED) {
+        windows.clear();
+      }
+    }
+    // both are counted, so a blocked address doesn't leave the username budget untouched
+    boolean addressAllowed = acquire("address:" + address, attemptsPerAddress, now);
+    boolean usernameAllowed = acquire("username:" + username, attemptsPerUsername, now);
+    return addressAllowed && usernameAllowed;
+  }
+
+  public int getTracked() {
+    return windows.size();
+  }
+
+  private boolean acquire(String key, int limit, long now) {
+    Window window = windows.compute(key,
+        (k, current) -> current == null || current.isOver(now, windowMillis) ? new Window(now)
+            : current);
+    return window.attempts.incrementAndGet() <= limit;
+  }
+
+  private static final class Window {
+    private final long start;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private Window(long start) {
+      this.start = start;
+    }
+
+    private boolean isOver(long now, long windowMillis) {
+      return now - start >= windowMillis;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package course.security;
+
+// turns passwords into the string stored in users.password and checks them against it. each
+// hasher recognises its own stored format, so several can be verified side by side
+public interface PasswordHasher {
+
+  String hash(String password);
+
+  boolean verify(String password, String stored);
+
+  // whether stored was produced by this hasher
+  boolean recognizes(String stored);
+
+  // stored was made by this hasher but with other settings than it would use now
+  default boolean needsRehash(String stored) {
+    return false;
+  }
+}
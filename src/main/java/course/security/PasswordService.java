@@ -0,0 +1,111 @@
+package course.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hashes new passwords with the current hasher and verifies stored ones with whichever hasher
+// made them. the key derivation runs on a small fixed pool with a bounded queue, so a burst of
+// logins queues up or is turned away (RejectedExecutionException) instead of taking every cpu
+// the page-rendering threads need
+public class PasswordService {
+  public static final int DEFAULT_QUEUE_SIZE = 32;
+
+  private final PasswordHasher hasher;
+  private final List<PasswordHasher> hashers;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong rejected = new AtomicLong();
+
+  public PasswordService(PasswordHasher hasher, int threads, int queueSize,
+      PasswordHasher... olderHashers) {
+    this.hasher = hasher;
+    this.hashers = new ArrayList<>();
+    this.hashers.add(hasher);
+    this.hashers.addAll(Arrays.asList(olderHashers));
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueSize), runnable -> {
+          Thread thread = new Thread(runnable, "password-hashing-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  // PBKDF2 at the default cost, MD5 hashes from before still verify. uses half the cpus
+  public static PasswordService withDefaults() {
+    return new PasswordService(new Pbkdf2PasswordHasher(Pbkdf2PasswordHasher.DEFAULT_ITERATIONS),
+        defaultThreads(), DEFAULT_QUEUE_SIZE, new LegacyMd5PasswordHasher());
+  }
+
+  public static int defaultThreads() {
+    return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  }
+
+  public String hash(String password) {
+    return run(() -> hasher.hash(password));
+  }
+
+  // false for a wrong password and for a stored value no hasher recognizes
+  public boolean verify(String password, String stored) {
+    PasswordHasher storedWith = hasherFor(stored);
+    return storedWith != null && run(() -> storedWith.verify(password, stored));
+  }
+
+  // true once the password was stored by an older hasher or at another cost
+  public boolean needsRehash(String stored) {
+    PasswordHasher storedWith = hasherFor(stored);
+    return storedWith != hasher || hasher.needsRehash(stored);
+  }
+
+  public int getQueued() {
+    return executor.getQueue().size();
+  }
+
+  public int getActive() {
+    return executor.getActiveCount();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  private PasswordHasher hasherFor(String stored) {
+    for (PasswordHasher candidate : hashers) {
+      if (candidate.recognizes(stored)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  private <T> T run(Callable<T> work) {
+    Future<T> result;
+    try {
+      result = executor.submit(work);
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for password hashing", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package course.security;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+// PBKDF2-HMAC-SHA256 from the JDK, stored as pbkdf2$<iterations>$<salt>$<hash> with base64 salt
+// and hash. iterations is the cost, older hashes keep verifying after it is raised
+public class Pbkdf2PasswordHasher implements PasswordHasher {
+  public static final int DEFAULT_ITERATIONS = 100000;
+
+  private static final String PREFIX = "pbkdf2$";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final int iterations;
+
+  public Pbkdf2PasswordHasher(int iterations) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be positive: " + iterations);
+    }
+    this.iterations = iterations;
+  }
+
+  @Override
+  public String hash(String password) {
+    byte[] salt = new byte[SALT_BYTES];
+    RANDOM.nextBytes(salt);
+    return PREFIX + iterations + "$" + Base64.encodeBase64String(salt) + "$"
+        + Base64.encodeBase64String(derive(password, salt, iterations));
+  }
+
+  @Override
+  public boolean verify(String password, String stored) {
+    String[] parts = stored.split("\\$");
+    if (parts.length != 4) {
+      return false;
+    }
+    byte[] expected = Base64.decodeBase64(parts[3]);
+    byte[] actual = derive(password, Base64.decodeBase64(parts[2]), Integer.parseInt(parts[1]));
+    // constant time, so the comparison doesn't leak how much of the hash matched
+    return MessageDigest.isEqual(expected, actual);
+  }
+
+  @Override
+  public boolean recognizes(String stored) {
+    return stored.startsWith(PREFIX);
+  }
+
+  @Override
+  public boolean needsRehash(String stored) {
+    String[] parts = stored.split("\\$");
+    return parts.length != 4 || Integer.parseInt(parts[1]) != iterations;
+  }
+
+  public int getIterations() {
+    return iterations;
+  }
+
+  private static byte[] derive(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(ALGORITHM + " is not available", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package course.util;
+
+public class PermalinkUtil {
+
+  private PermalinkUtil() {
+    throw new UnsupportedOperationException();
+  }
+
+  // single pass equivalent of title.replaceAll("\\s", "_").replaceAll("\\W", "").toLowerCase():
+  // whitespace becomes _, anything but ascii letters, digits and _ is dropped
+  public static String slugify(String title) {
+    char[] slug = new char[title.length()];
+    int length = 0;
+    for (int i = 0; i < title.length(); i++) {
+      char c = title.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+        slug[length++] = '_';
+      } else if (c >= 'A' && c <= 'Z') {
+        slug[length++] = (char) (c + ('a' - 'A'));
+      } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_') {
+        slug[length++] = c;
+      }
+    }
+    // a title made only of symbols would otherwise get an empty permalink
+    return length == 0 ? "post" : new String(slug, 0, length);
+  }
+
+  // the permalink to try on the given attempt when earlier ones were taken: slug, slug_2, ...
+  public static String candidate(String slug, int attempt) {
+    return attempt <= 1 ? slug : slug + "_" + attempt;
+  }
+}
@@ -1,10 +1,16 @@
 package course.util;
 
+import org.apache.commons.codec.binary.Base64;
 import spark.Request;
 
+import javax.crypto.Mac;
 import javax.servlet.http.Cookie;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 
 public class SessionUtil {
+  private static final SecureRandom NONCES = new SecureRandom();
 
   private SessionUtil(){
     throw new UnsupportedOperationException();
@@ -35,4 +41,80 @@ public class SessionUtil {
     }
     return null;
   }
+
+  // a session cookie that carries its own username and expiry, signed with mac so it can't be
+  // forged: base64url(username).expiry millis.base64url(nonce).base64url(hmac of the first three)
+  public static String createSignedSessionToken(String username, long expiresAtMillis, Mac mac) {
+    byte[] nonce = new byte[12];
+    NONCES.nextBytes(nonce);
+    String payload = Base64.encodeBase64URLSafeString(username.getBytes(StandardCharsets.UTF_8))
+        + "." + expiresAtMillis + "." + Base64.encodeBase64URLSafeString(nonce);
+    return payload + "." + Base64.encodeBase64URLSafeString(sign(payload, mac));
+  }
+
+  // returns null if the token is malformed, forged or expired. the decoder skips characters
+  // outside the alphabet and ignores padding, so only the exact encoding of the signature is
+  // accepted, otherwise one session could be spelled many ways and a revoked spelling dodged
+  public static SignedSession parseSignedSessionToken(String token, Mac mac, long nowMillis) {
+    if (token == null) {
+      return null;
+    }
+    int signatureStart = token.lastIndexOf('.');
+    if (signatureStart <= 0) {
+      return null;
+    }
+    String payload = token.substring(0, signatureStart);
+    String encodedSignature = token.substring(signatureStart + 1);
+    byte[] signature = Base64.decodeBase64(encodedSignature);
+    if (!MessageDigest.isEqual(signature, sign(payload, mac))
+        || !Base64.encodeBase64URLSafeString(signature).equals(encodedSignature)) {
+      return null;
+    }
+
+    String[] parts = payload.split("\\.");
+    if (parts.length != 3) {
+      return null;
+    }
+    long expiresAtMillis;
+    try {
+      expiresAtMillis = Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (expiresAtMillis <= nowMillis) {
+      return null;
+    }
+    return new SignedSession(new String(Base64.decodeBase64(parts[0]), StandardCharsets.UTF_8),
+        expiresAtMillis, encodedSignature);
+  }
+
+  private static byte[] sign(String payload, Mac mac) {
+    return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // a verified signed session token
+  public static final class SignedSession {
+    private final String username;
+    private final long expiresAtMillis;
+    private final String signature;
+
+    private SignedSession(String username, long expiresAtMillis, String signature) {
+      this.username = username;
+      this.expiresAtMillis = expiresAtMillis;
+      this.signature = signature;
+    }
+
+    public String getUsername() {
+      return username;
+    }
+
+    public long getExpiresAtMillis() {
+      return expiresAtMillis;
+    }
+
+    // identifies the session, there is exactly one valid spelling of it
+    public String getSignature() {
+      return signature;
+    }
+  }
 }
@@ -0,0 +1,27 @@
+package course.util;
+
+public class TextUtil {
+
+  private TextUtil() {
+    throw new UnsupportedOperationException();
+  }
+
+  // every \n or \r\n becomes <p>, like text.replaceAll("\\r?\\n", "<p>"). text without line
+  // breaks is returned as is
+  public static String paragraphs(String text) {
+    int newline = text.indexOf('\n');
+    if (newline < 0) {
+      return text;
+    }
+
+    StringBuilder html = new StringBuilder(text.length() + 16);
+    int start = 0;
+    while (newline >= 0) {
+      int end = newline > start && text.charAt(newline - 1) == '\r' ? newline - 1 : newline;
+      html.append(text, start, end).append("<p>");
+      start = newline + 1;
+      newline = text.indexOf('\n', start);
+    }
+    return html.append(text, start, text.length()).toString();
+  }
+}
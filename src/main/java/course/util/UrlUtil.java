@@ -0,0 +1,34 @@
+package course.util;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+public class UrlUtil {
+
+  private UrlUtil() {
+    throw new UnsupportedOperationException();
+  }
+
+  // a tag or permalink as one segment of a url path
+  public static String encodeSegment(String segment) {
+    try {
+      return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // spark hands out path params as they were sent. a + in a path is a plus, not a space, and a
+  // segment that isn't valid percent encoding is taken literally
+  public static String decodeSegment(String segment) {
+    if (segment == null || segment.indexOf('%') < 0) {
+      return segment;
+    }
+    try {
+      return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return segment;
+    }
+  }
+}
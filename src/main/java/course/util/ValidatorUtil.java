@@ -8,23 +8,21 @@ public class ValidatorUtil {
     throw new UnsupportedOperationException();
   }
 
+  // the checks are hand-written equivalents of full matches against
+  // ^[a-zA-Z0-9_-]{3,20}$, ^.{3,20}$ and ^[\S]+@[\S]+\.[\S]+$
   public static boolean validateSignup(String username, String password, String verify,
       String email, HashMap<String, String> errors) {
-    String USER_RE = "^[a-zA-Z0-9_-]{3,20}$";
-    String PASS_RE = "^.{3,20}$";
-    String EMAIL_RE = "^[\\S]+@[\\S]+\\.[\\S]+$";
-
     errors.put("username_error", "");
     errors.put("password_error", "");
     errors.put("verify_error", "");
     errors.put("email_error", "");
 
-    if (!username.matches(USER_RE)) {
+    if (!isValidUsername(username)) {
       errors.put("username_error", "invalid username. try just letters and numbers");
       return false;
     }
 
-    if (!password.matches(PASS_RE)) {
+    if (!isValidPassword(password)) {
       errors.put("password_error", "invalid password.");
       return false;
     }
@@ -36,7 +34,7 @@ public class ValidatorUtil {
     }
 
     if (!email.equals("")) {
-      if (!email.matches(EMAIL_RE)) {
+      if (!isValidEmail(email)) {
         errors.put("email_error", "Invalid Email Address");
         return false;
       }
@@ -44,4 +42,46 @@ public class ValidatorUtil {
 
     return true;
   }
+
+  public static boolean isValidUsername(String username) {
+    if (username.length() < 3 || username.length() > 20) {
+      return false;
+    }
+    for (int i = 0; i < username.length(); i++) {
+      char c = username.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '_' || c == '-')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // . counts code points and stops at line terminators
+  public static boolean isValidPassword(String password) {
+    int codePoints = password.codePointCount(0, password.length());
+    if (codePoints < 3 || codePoints > 20) {
+      return false;
+    }
+    for (int i = 0; i < password.length(); i++) {
+      char c = password.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // no whitespace, and an @ with something before it followed by a . with something on both
+  // sides. the first usable @ and the last usable . are the best candidates
+  public static boolean isValidEmail(String email) {
+    for (int i = 0; i < email.length(); i++) {
+      if (TagsUtil.isWhitespace(email.charAt(i))) {
+        return false;
+      }
+    }
+    int at = email.indexOf('@', 1);
+    int dot = email.lastIndexOf('.', email.length() - 2);
+    return at > 0 && dot >= at + 2;
+  }
 }
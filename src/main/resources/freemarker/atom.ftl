@@ -0,0 +1,22 @@
+<?xml version="1.0" encoding="utf-8"?>
+<feed xmlns="http://www.w3.org/2005/Atom">
+    <title type="html">${title?xml}</title>
+    <id>${feedUrl?xml}</id>
+    <link rel="self" type="application/atom+xml" href="${feedUrl?xml}"/>
+    <link rel="alternate" type="text/html" href="${pageUrl?xml}"/>
+    <updated>${updated}</updated>
+<#list entries as entry>
+    <entry>
+        <title type="html">${entry["title"]?xml}</title>
+        <id>${entry["url"]?xml}</id>
+        <link rel="alternate" type="text/html" href="${entry["url"]?xml}"/>
+        <published>${entry["published"]}</published>
+        <updated>${entry["published"]}</updated>
+        <author><name>${entry["author"]?xml}</name></author>
+    <#list entry["tags"] as tag>
+        <category term="${tag?xml}"/>
+    </#list>
+        <content type="html">${entry["body"]?xml}</content>
+    </entry>
+</#list>
+</feed>
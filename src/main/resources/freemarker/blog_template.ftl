@@ -2,6 +2,7 @@
 <html>
 <head>
     <title>My Blog</title>
+    <link rel="alternate" type="application/atom+xml" title="My Blog" href="/feed.xml">
 </head>
 <body>
 
@@ -15,31 +16,16 @@
 
 <h1>My Blog</h1>
 
-<#list myposts as post>
-    <h2><a href="/post/${post["permalink"]}">${post["title"]}</a></h2>
-    Posted ${post["date"]?datetime} <i>By ${post["author"]}</i><br>
-    Comments:
-    <#if post["comments"]??>
-        <#assign numComments = post["comments"]?size>
-            <#else>
-                <#assign numComments = 0>
-    </#if>
-
-    <a href="/post/${post["permalink"]}">${numComments}</a>
-    <hr>
-    ${post["body"]!""}
-    <p>
-
-    <p>
-        <em>Filed Under</em>:
-        <#if post["tags"]??>
-            <#list post["tags"] as tag>
-                <a href="/tag/${tag}">${tag}</a>
-            </#list>
-        </#if>
+<form action="/search" method="get">
+    <input type="text" name="q" value="${query!""}">
+    <input type="submit" value="Search">
+    <a href="/tags">All tags</a>
+</form>
+<#if query??>
+    <h2>Search results for "${query}"</h2>
+</#if>
 
-    <p>
-</#list>
+${postsHtml}
 </body>
 </html>
 
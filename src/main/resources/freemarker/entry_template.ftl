@@ -26,20 +26,24 @@ ${post["body"]}
         </#list>
     </#if>
 <p>
-    Comments:
+    Comments: ${post["comment_count"]!0}
 <ul>
     <#if post["comments"]??>
         <#assign numComments = post["comments"]?size>
             <#else>
                 <#assign numComments = 0>
     </#if>
+    <#assign commentOffset = post["comment_offset"]!0>
     <#if (numComments > 0)>
         <#list 0 .. (numComments -1) as i>
             <form action="/like" method="POST">
                 <input type="hidden" name="permalink", value="${post["permalink"]}">
-                <input type="hidden" name="comment_ordinal", value="${i}">
+                <input type="hidden" name="comment_ordinal", value="${(commentOffset + i)?c}">
+                <#if post["comments"][i]["_id"]??>
+                    <input type="hidden" name="comment_id", value="${post["comments"][i]["_id"]}">
+                </#if>
                 Author: ${post["comments"][i]["author"]}<br>
-                Likes: ${post["comments"][i]["num_likes"]}
+                Likes: ${post["comments"][i]["num_likes"]!0}
                 <#if username??>
                     <input type="submit" value="Like">
                 </#if>
@@ -49,6 +53,12 @@ ${post["body"]}
             <hr>
         </#list>
     </#if>
+    <#if previousComments??>
+        <a href="${previousComments}">Previous comments</a>
+    </#if>
+    <#if nextComments??>
+        <a href="${nextComments}">More comments</a>
+    </#if>
     <h3>Add a comment</h3>
 
     <form action="/newcomment" method="POST">
@@ -0,0 +1,22 @@
+<#list myposts as post>
+    <h2><a href="/post/${post["permalink"]}">${post["title"]}</a></h2>
+    Posted ${post["date"]?datetime} <i>By ${post["author"]}</i><br>
+    Comments:
+    <a href="/post/${post["permalink"]}">${post["comment_count"]!0}</a>
+    <hr>
+    ${post["body"]!""}
+    <p>
+
+    <p>
+        <em>Filed Under</em>:
+        <#if post["tags"]??>
+            <#list post["tags"] as tag>
+                <a href="/tag/${tag}">${tag}</a>
+            </#list>
+        </#if>
+
+    <p>
+</#list>
+<#if nextPage??>
+    <a href="${nextPage}">${nextPageLabel}</a>
+</#if>
@@ -0,0 +1,29 @@
+<!DOCTYPE html>
+<html>
+<head>
+    <title>Tags</title>
+</head>
+<body>
+
+<#if username??>
+    Welcome ${username} <a href="/logout">Logout</a> | <a href="/newpost">New Post</a>
+
+    <p>
+<#else>
+    Login to add new post <a href="/login">Login</a>
+</#if>
+
+<h1>Tags</h1>
+
+<#if tags?size == 0>
+    No posts have been tagged yet.
+</#if>
+<#list tags as tag>
+    <a href="/tag/${tag["_id"]}" style="font-size: ${(100 + 150 * tag["count"] / maxCount)?round?c}%"
+       title="${tag["count"]?c} posts, last used ${tag["last_used"]?date}">${tag["_id"]}</a>
+</#list>
+
+<p>
+<a href="/">Back to the blog</a>
+</body>
+</html>